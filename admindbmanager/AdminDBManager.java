@@ -2,18 +2,49 @@ package admindbmanager;
 
 import com.google.gson.JsonObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class AdminDBManager {
+    private static final int DEFAULT_POOL_MIN_SIZE = 2;
+    private static final int DEFAULT_POOL_MAX_SIZE = 10;
     private final Map<String, DBMSHandler> dbmsMap = new HashMap<>();
+    private final List<ConnectionPool> connectionPools = new ArrayList<>();
 
     public AdminDBManager() {
         initDBMSHandlers();
     }
 
     private void initDBMSHandlers() {
-        dbmsMap.put("mysql", new MySQLHandler());
+        ConnectionPool mySQLPool = createConnectionPool(
+                System.getProperty("gateway.db.mysql.url", "jdbc:mysql://localhost:3306/Company"),
+                System.getProperty("gateway.db.mysql.user", "itay"),
+                System.getProperty("gateway.db.mysql.password", "Aa12345678!"));
+        dbmsMap.put("mysql", new MySQLHandler(mySQLPool));
+    }
+
+    //every DBMS handler borrows its connections from a pool (see ConnectionPool), configured by gateway.db.pool.*
+    private ConnectionPool createConnectionPool(String url, String user, String password) {
+        ConnectionPool connectionPool = new ConnectionPool(url, user, password,
+                Integer.getInteger("gateway.db.pool.minSize", DEFAULT_POOL_MIN_SIZE),
+                Integer.getInteger("gateway.db.pool.maxSize", DEFAULT_POOL_MAX_SIZE));
+        connectionPool.setBorrowTimeout(Long.getLong("gateway.db.pool.borrowTimeoutMillis", ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS), TimeUnit.MILLISECONDS);
+        connectionPool.setMaxLifetime(Long.getLong("gateway.db.pool.maxLifetimeMillis", ConnectionPool.DEFAULT_MAX_LIFETIME_MILLIS), TimeUnit.MILLISECONDS);
+        connectionPool.setIdleTimeout(Long.getLong("gateway.db.pool.idleTimeoutMillis", ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS), TimeUnit.MILLISECONDS);
+        connectionPool.setValidationInterval(Long.getLong("gateway.db.pool.validationIntervalMillis", ConnectionPool.DEFAULT_VALIDATION_INTERVAL_MILLIS), TimeUnit.MILLISECONDS);
+        connectionPool.setLeakDetectionThreshold(Long.getLong("gateway.db.pool.leakDetectionMillis", 0), TimeUnit.MILLISECONDS);
+        connectionPools.add(connectionPool);
+        return connectionPool;
+    }
+
+    //closes the connection pools
+    public void close() {
+        for (ConnectionPool connectionPool : connectionPools) {
+            connectionPool.close();
+        }
     }
 
     public JsonObject registerCompany(JsonObject data) {
@@ -0,0 +1,543 @@
+package admindbmanager;
+
+import logger.Logger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//a pool of JDBC connections to one database, for the DBMS handlers. opening a connection (TCP connect, auth and
+//session setup) often costs more than the query, so connections are kept open and reused.
+//borrowing and returning don't lock: the idle connections are a lock-free stack (the most recently used one is
+//reused first, the others age out), and a borrower only waits when all maxSize connections are in use.
+//a connection that was idle for longer than the validation interval is validated before it's handed out, and no
+//connection is used for longer than its max lifetime. a housekeeping thread validates and retires idle connections,
+//keeps minSize connections open, and reports connections that were borrowed for too long (leaks)
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class);
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 5000;
+    public static final long DEFAULT_MAX_LIFETIME_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 5000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long HOUSEKEEPING_INTERVAL_MILLIS = 1000;
+    //the session settings a borrower changed, to put back when the connection is returned
+    private static final int DIRTY_READ_ONLY = 1;
+    private static final int DIRTY_TRANSACTION_ISOLATION = 1 << 1;
+    private static final int DIRTY_CATALOG = 1 << 2;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final Semaphore borrowPermits;  //one per connection that may be borrowed
+    private final Deque<PooledConnection> idleConnections = new ConcurrentLinkedDeque<>();  //most recently returned first
+    private final Set<PooledConnection> borrowedConnections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger numOfConnections = new AtomicInteger(0);    //open or being opened
+    //a borrower with a permit waits here while the connection it may use is still being opened or validated
+    private final ReentrantLock connectionAvailableLock = new ReentrantLock();
+    private final Condition connectionAvailable = connectionAvailableLock.newCondition();
+    private final AtomicInteger waitingBorrowers = new AtomicInteger(0);
+    private final Thread housekeepingThread;
+    private volatile long borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BORROW_TIMEOUT_MILLIS);
+    private volatile long maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_LIFETIME_MILLIS);
+    private volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+    private volatile long validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_VALIDATION_INTERVAL_MILLIS);
+    private volatile long leakDetectionThresholdNanos = 0;  //0: no leak detection
+    private volatile boolean isClosed = false;
+
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize) {
+        if (url == null || url.isEmpty()) {
+            throw new IllegalArgumentException("Invalid database URL");
+        }
+        if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowPermits = new Semaphore(maxSize);
+
+        //the first run opens the minSize connections, so a database that is down doesn't fail the constructor
+        housekeepingThread = new Thread(this::runHousekeeping, "connection-pool-housekeeping");
+        housekeepingThread.setDaemon(true);
+        housekeepingThread.start();
+    }
+
+
+    //the connection goes back to the pool when it's closed, so use it in a try with resources.
+    //throws if no connection was available within the borrow timeout
+    public Connection getConnection() throws SQLException {
+        if (isClosed) {
+            throw new SQLException("Connection pool of " + url + " is closed");
+        }
+        long deadline = System.nanoTime() + borrowTimeoutNanos;
+        try {
+            if (!borrowPermits.tryAcquire(borrowTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                throw new SQLException("Timed out waiting for a connection to " + url + " (" + maxSize + " in use)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection to " + url, e);
+        }
+
+        try {
+            PooledConnection pooledConnection = takeIdleConnection(deadline);
+            long now = System.nanoTime();
+            pooledConnection.borrowTime = now;
+            pooledConnection.isLeakReported = false;
+            pooledConnection.borrowStackTrace = (leakDetectionThresholdNanos > 0) ? new Exception("Borrowed here") : null;
+            borrowedConnections.add(pooledConnection);
+            return pooledConnection.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            borrowPermits.release();
+            throw e;
+        }
+    }
+
+    private PooledConnection takeIdleConnection(long deadline) throws SQLException {
+        while (true) {
+            if (isClosed) {
+                throw new SQLException("Connection pool of " + url + " is closed");
+            }
+            PooledConnection pooledConnection = idleConnections.pollFirst();
+            if (pooledConnection != null) {
+                if (isUsable(pooledConnection, System.nanoTime())) {
+                    return pooledConnection;
+                }
+                discard(pooledConnection);
+            } else if (tryReserve(maxSize)) {
+                return open();
+            } else {
+                //the housekeeping thread is opening or validating a connection that isn't idle yet
+                awaitConnection(deadline);
+            }
+        }
+    }
+
+    //returns once a connection became idle or a place for a new one was freed (or spuriously), throws on timeout
+    private void awaitConnection(long deadline) throws SQLException {
+        connectionAvailableLock.lock();
+        //register as waiting before checking again, so a connection that becomes available in between signals us
+        waitingBorrowers.incrementAndGet();
+        try {
+            if (idleConnections.isEmpty() && numOfConnections.get() >= maxSize) {
+                long remainingTimeToWait = deadline - System.nanoTime();
+                if (remainingTimeToWait <= 0) {
+                    throw new SQLException("Timed out waiting for a connection to " + url + " (" + maxSize + " in use)");
+                }
+                connectionAvailable.awaitNanos(remainingTimeToWait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection to " + url, e);
+        } finally {
+            waitingBorrowers.decrementAndGet();
+            connectionAvailableLock.unlock();
+        }
+    }
+
+    private void signalConnectionAvailable() {
+        //only touch the lock when a borrower is actually waiting
+        if (waitingBorrowers.get() > 0) {
+            connectionAvailableLock.lock();
+            try {
+                connectionAvailable.signalAll();
+            } finally {
+                connectionAvailableLock.unlock();
+            }
+        }
+    }
+
+    //a connection offered after close() drained the idle connections would stay open forever: take it back out.
+    //if close() got it first, close() discarded it
+    private void offerIdle(PooledConnection pooledConnection, boolean isMostRecent) {
+        if (isMostRecent) {
+            idleConnections.offerFirst(pooledConnection);
+        } else {
+            idleConnections.offerLast(pooledConnection);
+        }
+        if (isClosed && idleConnections.remove(pooledConnection)) {
+            discard(pooledConnection);
+        }
+        signalConnectionAvailable();
+    }
+
+
+    private void giveBack(PooledConnection pooledConnection) {
+        borrowedConnections.remove(pooledConnection);
+        try {
+            pooledConnection.closeOpenResources();
+            if (isClosed || pooledConnection.isExpired(System.nanoTime(), maxLifetimeNanos) || !resetState(pooledConnection)) {
+                discard(pooledConnection);
+            } else {
+                pooledConnection.lastUsedTime = System.nanoTime();
+                offerIdle(pooledConnection, true);
+            }
+        } finally {
+            borrowPermits.release();
+        }
+    }
+
+    //a transaction the borrower left open is rolled back, and the session settings it changed are put back, so the
+    //next borrower starts clean
+    private boolean resetState(PooledConnection pooledConnection) {
+        Connection connection = pooledConnection.connection;
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            int dirtyState = pooledConnection.dirtyState;
+            if ((dirtyState & DIRTY_READ_ONLY) != 0) {
+                connection.setReadOnly(pooledConnection.defaultReadOnly);
+            }
+            if ((dirtyState & DIRTY_TRANSACTION_ISOLATION) != 0) {
+                connection.setTransactionIsolation(pooledConnection.defaultTransactionIsolation);
+            }
+            if ((dirtyState & DIRTY_CATALOG) != 0 && pooledConnection.defaultCatalog != null) {
+                connection.setCatalog(pooledConnection.defaultCatalog);
+            }
+            pooledConnection.dirtyState = 0;
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+
+    //reserves a place for a new connection, if there are less than limit connections
+    private boolean tryReserve(int limit) {
+        while (true) {
+            int currentNumOfConnections = numOfConnections.get();
+            if (currentNumOfConnections >= limit) {
+                return false;
+            }
+            if (numOfConnections.compareAndSet(currentNumOfConnections, currentNumOfConnections + 1)) {
+                return true;
+            }
+        }
+    }
+
+    //after tryReserve
+    private PooledConnection open() throws SQLException {
+        try {
+            Connection connection = DriverManager.getConnection(url, user, password);
+            try {
+                return new PooledConnection(connection);
+            } catch (SQLException | RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+        } catch (SQLException | RuntimeException e) {
+            numOfConnections.decrementAndGet();
+            signalConnectionAvailable();
+            throw e;
+        }
+    }
+
+    private void discard(PooledConnection pooledConnection) {
+        numOfConnections.decrementAndGet();
+        signalConnectionAvailable();
+        try {
+            pooledConnection.connection.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Couldn't close a connection to {}: {}", url, e.getMessage());
+        }
+    }
+
+
+    private boolean isUsable(PooledConnection pooledConnection, long now) {
+        if (pooledConnection.isExpired(now, maxLifetimeNanos)) {
+            return false;
+        }
+        if (now - pooledConnection.lastUsedTime < validationIntervalNanos) {
+            return true;
+        }
+        try {
+            return pooledConnection.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+
+    private void runHousekeeping() {
+        while (!isClosed) {
+            try {
+                retireIdleConnections();
+                fillToMinSize();
+                reportLeaks();
+            } catch (RuntimeException e) {
+                LOGGER.error("Connection pool housekeeping of {} failed", url, e);
+            }
+            try {
+                Thread.sleep(HOUSEKEEPING_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    //validates the connections that were idle for the validation interval, and closes the expired ones and (above
+    //minSize) the ones idle for longer than the idle timeout
+    private void retireIdleConnections() {
+        long now = System.nanoTime();
+        for (PooledConnection pooledConnection : new ArrayList<>(idleConnections)) {
+            if (now - pooledConnection.lastUsedTime < validationIntervalNanos && !pooledConnection.isExpired(now, maxLifetimeNanos)) {
+                continue;
+            }
+            //taken out while it's checked, so no borrower uses it meanwhile. false if a borrower took it already
+            if (!idleConnections.remove(pooledConnection)) {
+                continue;
+            }
+            boolean isIdleTooLong = now - pooledConnection.lastUsedTime >= idleTimeoutNanos && numOfConnections.get() > minSize;
+            if (isIdleTooLong || !isUsable(pooledConnection, now)) {
+                discard(pooledConnection);
+            } else {
+                pooledConnection.lastUsedTime = now;   //validated
+                offerIdle(pooledConnection, false);
+            }
+        }
+    }
+
+    private void fillToMinSize() {
+        while (!isClosed && tryReserve(minSize)) {
+            try {
+                PooledConnection pooledConnection = open();
+                pooledConnection.lastUsedTime = System.nanoTime();
+                offerIdle(pooledConnection, false);
+            } catch (SQLException e) {
+                LOGGER.warn("Couldn't open a connection to {}: {}", url, e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void reportLeaks() {
+        long threshold = leakDetectionThresholdNanos;
+        if (threshold <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (PooledConnection pooledConnection : borrowedConnections) {
+            if (!pooledConnection.isLeakReported && now - pooledConnection.borrowTime > threshold) {
+                pooledConnection.isLeakReported = true;
+                LOGGER.error("A connection to {} was not returned to the pool - possible leak", url, pooledConnection.borrowStackTrace);
+            }
+        }
+    }
+
+
+    //connections that are borrowed are closed when they're returned
+    @Override
+    public void close() {
+        isClosed = true;
+        housekeepingThread.interrupt();
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idleConnections.pollFirst()) != null) {
+            discard(pooledConnection);
+        }
+    }
+
+
+    public void setBorrowTimeout(long timeout, TimeUnit unit) {
+        borrowTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    public void setMaxLifetime(long maxLifetime, TimeUnit unit) {
+        maxLifetimeNanos = unit.toNanos(maxLifetime);
+    }
+
+    //only connections above minSize are closed for being idle
+    public void setIdleTimeout(long idleTimeout, TimeUnit unit) {
+        idleTimeoutNanos = unit.toNanos(idleTimeout);
+    }
+
+    public void setValidationInterval(long validationInterval, TimeUnit unit) {
+        validationIntervalNanos = unit.toNanos(validationInterval);
+    }
+
+    //a connection borrowed for longer than the threshold is reported once, with the stack trace of its borrower.
+    //0 disables leak detection (the stack trace is only captured while it's enabled)
+    public void setLeakDetectionThreshold(long threshold, TimeUnit unit) {
+        leakDetectionThresholdNanos = unit.toNanos(threshold);
+    }
+
+
+    public int getNumOfConnections() {
+        return numOfConnections.get();
+    }
+
+    public int getNumOfIdleConnections() {
+        return idleConnections.size();
+    }
+
+    public int getNumOfBorrowedConnections() {
+        return borrowedConnections.size();
+    }
+
+
+    //a physical connection of the pool
+    private class PooledConnection {
+        private final Connection connection;
+        private final long creationTime = System.nanoTime();
+        //the session settings as opened, to put back what a borrower changed
+        private final boolean defaultReadOnly;
+        private final int defaultTransactionIsolation;
+        private final String defaultCatalog;
+        //the statements (and metadata result sets) of the current borrower that are still open. closed on return
+        private final Set<AutoCloseable> openResources = ConcurrentHashMap.newKeySet();
+        private int dirtyState = 0;     //DIRTY_ flags. borrower only (giveBack runs on the borrower's close)
+        private volatile long lastUsedTime = creationTime;
+        private volatile long borrowTime = 0;
+        private volatile boolean isLeakReported = false;
+        private volatile Exception borrowStackTrace = null;
+
+        private PooledConnection(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.defaultReadOnly = connection.isReadOnly();
+            this.defaultTransactionIsolation = connection.getTransactionIsolation();
+            this.defaultCatalog = connection.getCatalog();
+        }
+
+        private boolean isExpired(long now, long maxLifetime) {
+            return now - creationTime >= maxLifetime;
+        }
+
+        //closing a statement closes its result sets too
+        private void closeOpenResources() {
+            for (AutoCloseable resource : openResources) {
+                try {
+                    resource.close();
+                } catch (Exception e) {
+                    LOGGER.debug("Couldn't close a statement left open on {}: {}", url, e.getMessage());
+                }
+            }
+            openResources.clear();
+        }
+
+        //what the borrower gets: the connection, except that closing it returns it to the pool. a handle can't be
+        //used after it was closed, even though its connection lives on in the pool
+        private Connection newHandle() {
+            AtomicBoolean isReturned = new AtomicBoolean(false);
+            InvocationHandler handler = (proxy, method, args) -> invokeOnHandle(proxy, isReturned, method, args);
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+        }
+
+        private Object invokeOnHandle(Object handle, AtomicBoolean isReturned, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return handle == args[0];
+                case "hashCode":
+                    return System.identityHashCode(handle);
+                case "close":
+                    if (isReturned.compareAndSet(false, true)) {
+                        giveBack(this);
+                    }
+                    return null;
+                case "isClosed":
+                    return isReturned.get() || connection.isClosed();
+                case "toString":
+                    return "Pooled " + connection;
+                default:
+                    break;
+            }
+            if (isReturned.get()) {
+                throw new SQLException("Connection is closed");
+            }
+            dirtyState |= dirtyFlagOf(method.getName());
+            return wrapChild((Connection) handle, null, method, invoke(connection, method, args));
+        }
+
+        private int dirtyFlagOf(String methodName) {
+            switch (methodName) {
+                case "setReadOnly":
+                    return DIRTY_READ_ONLY;
+                case "setTransactionIsolation":
+                    return DIRTY_TRANSACTION_ISOLATION;
+                case "setCatalog":
+                    return DIRTY_CATALOG;
+                default:
+                    return 0;
+            }
+        }
+
+        //statements, metadata and result sets would give the borrower the physical connection (getConnection), which
+        //it could close or keep using after it returned the handle - so they're wrapped, and give the handle instead.
+        //statements, and the result sets of the metadata (which belong to no statement of ours), are tracked until
+        //they're closed
+        private Object wrapChild(Connection handle, Object parentChild, Method method, Object child) {
+            Class<?> childType = method.getReturnType();
+            if (child == null || !(Statement.class.isAssignableFrom(childType) || childType == DatabaseMetaData.class
+                    || childType == ResultSet.class)) {
+                return child;
+            }
+            boolean isTracked = child instanceof Statement || (child instanceof ResultSet && parentChild instanceof DatabaseMetaData);
+            if (isTracked) {
+                openResources.add((AutoCloseable) child);
+            }
+            InvocationHandler handler = (proxy, childMethod, args) -> invokeOnChild(handle, proxy, parentChild, child, isTracked, childMethod, args);
+            return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{childType}, handler);
+        }
+
+        private Object invokeOnChild(Connection handle, Object childProxy, Object parentChild, Object child, boolean isTracked,
+                                     Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return childProxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(childProxy);
+                case "toString":
+                    return child.toString();
+                case "getConnection":
+                    return handle;
+                case "getStatement":
+                    //a result set of a statement we wrapped: that statement, not the physical one
+                    if (parentChild instanceof Statement) {
+                        return parentChild;
+                    }
+                    break;
+                case "close":
+                    if (isTracked) {
+                        openResources.remove(child);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return wrapChild(handle, childProxy, method, invoke(child, method, args));
+        }
+
+        private Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
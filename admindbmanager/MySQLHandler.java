@@ -1,14 +1,24 @@
 package admindbmanager;
 
 import com.google.gson.JsonObject;
+import logger.Logger;
 
 import java.sql.*;
 
 public class MySQLHandler implements DBMSHandler {
+    private static final Logger LOGGER = Logger.getLogger(MySQLHandler.class);
+    private final ConnectionPool connectionPool;
 
-    // Method to create a reusable database connection
+    public MySQLHandler(ConnectionPool connectionPool) {
+        if (connectionPool == null) {
+            throw new IllegalArgumentException("Invalid connection pool");
+        }
+        this.connectionPool = connectionPool;
+    }
+
+    // Method to borrow a database connection from the pool (closing it returns it to the pool)
     private Connection getDatabaseConnection() throws SQLException {
-        return DriverManager.getConnection("jdbc:mysql://localhost:3306/Company", "itay", "Aa12345678!");
+        return connectionPool.getConnection();
     }
 
 
@@ -46,8 +56,7 @@ public class MySQLHandler implements DBMSHandler {
             responseJson.addProperty("Status", "200");
             responseJson.addProperty("Info", "Registered company ID: " + companyId + ". Registered company name: " + companyName + ".");
         } catch (SQLException e) {
-            e.printStackTrace();
-            System.out.println(e.getMessage()); //TODO remove test prints
+            LOGGER.error("SQL query failed", e);
             responseJson.addProperty("Status", "400");
             responseJson.addProperty("Info", "Failed creating new Company");
         }
@@ -96,8 +105,7 @@ public class MySQLHandler implements DBMSHandler {
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
-            System.out.println(e.getMessage()); //TODO remove test prints
+            LOGGER.error("SQL query failed", e);
             responseJson.addProperty("Status", "400");
             responseJson.addProperty("Info", "Failed fetching Company data");
         }
@@ -130,8 +138,7 @@ public class MySQLHandler implements DBMSHandler {
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
-            System.out.println(e.getMessage()); //TODO remove test prints
+            LOGGER.error("SQL query failed", e);
             responseJson.addProperty("Status", "400");
             responseJson.addProperty("Info", "Failed fetching Company data");
         }
@@ -3,11 +3,17 @@ package commandplugins;
 import com.google.gson.JsonObject;
 import connectionservice.RespondableChannel;
 import factory.Command;
+import factory.NonBlocking;
+import factory.WarmUp;
 import gatewayserver.CommandParser;
+import logger.Logger;
 
 import java.nio.ByteBuffer;
 
+@NonBlocking
+@WarmUp({"{\"Name\": \"warm-up product\"}"})
 public class RegisterProductCommand implements Command {
+    private static final Logger LOGGER = Logger.getLogger(RegisterProductCommand.class);
     private final JsonObject data;
 
     public RegisterProductCommand(JsonObject data) {
@@ -21,7 +27,7 @@ public class RegisterProductCommand implements Command {
 
     @Override
     public void execute(RespondableChannel respondableChannel) {
-        System.out.println("REGISTER PRODUCT command!\t");
+        LOGGER.debug("REGISTER PRODUCT command!");
         //get company name from JSON
         String productName = data.get("Name").getAsString();
 
@@ -6,8 +6,17 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import gatewayserver.CommandParser;
+import gatewayserver.InlineExecutionBudget;
+import gatewayserver.RequestBatch;
 import gatewayserver.RequestProcessingService;
+import gatewayserver.RequestRing;
 import gatewayserver.URIHandler;
+import jfrevents.ConnectionAcceptEvent;
+import jfrevents.RequestReadEvent;
+import logger.Logger;
+import threadpool.Priority;
+import threadpool.PriorityExecutor;
+import threadpool.VirtualThreads;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -16,35 +25,59 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
+//the network side of the server. the default runtime has a single selector thread, and requests run on the request
+//processing service's shared pool. the sharded runtime has N event loops (shards), each with its own selector, its own
+//connections and its own worker pool: a connection stays on the shard that accepted it, and shards only talk to each
+//other by posting messages to each other's mailbox
 public class ConnectionService {
+    private static final Logger LOGGER = Logger.getLogger(ConnectionService.class);
     private final RequestProcessingService requestProcessingService;
-    private final Set<SelectableChannel> openChannels = new HashSet<>();
-    private final Selector selector;
+    private final List<EventLoop> eventLoops = new ArrayList<>();
+    private final AtomicInteger nextShard = new AtomicInteger(0);
     private volatile boolean isConnectionServiceRunning = false;
     private static final int BUFFER_SIZE = 8192;    //2^13B = 8KB
-    private final Thread listenerThread = new Thread(this::listen);
+    private static final long DEFAULT_INLINE_BUDGET_MICROS = 500;
+    private static final int DEFAULT_RING_WORKERS = 2;
+    private static final int DEFAULT_SUBMIT_BATCH_SIZE = 16;
+    private static final Priority HTTP_REQUEST_PRIORITY = Priority.MEDIUM;  //the HTTP service has a single port
     private HttpService httpService;
 
     public ConnectionService(RequestProcessingService requestProcessingService) {
         this.requestProcessingService = requestProcessingService;
-        try {
-            selector = Selector.open();
-        } catch (IOException e) {
-            throw new RuntimeException("Selector failed to open", e);
+        //a single event loop that hands requests to the shared pool
+        eventLoops.add(new EventLoop(0, null));
+    }
+
+    //sharded runtime: the request processing service should be started without a shared pool
+    public ConnectionService(RequestProcessingService requestProcessingService, int numOfShards, int workersPerShard) {
+        if (numOfShards < 1 || workersPerShard < 1) {
+            throw new IllegalArgumentException("Number of shards and workers per shard must be positive");
+        }
+        this.requestProcessingService = requestProcessingService;
+        for (int i = 0; i < numOfShards; ++i) {
+            eventLoops.add(new EventLoop(i, requestProcessingService.createWorkerPool(workersPerShard, "shard-" + i)));
         }
     }
 
     public void start() {
         isConnectionServiceRunning = true;
-        listenerThread.start();
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
         try {
             httpService = new HttpService("127.0.0.1", 8001);   //TODO hard-coded vs argument?
             httpService.start();
@@ -53,27 +86,6 @@ public class ConnectionService {
         }
     }
 
-    private void listen() {
-        try {
-            while (isConnectionServiceRunning) {
-                //wait for events - blocking until an event is ready
-                selector.select();
-                //iterate over all selected keys (events)
-                for (SelectionKey key : selector.selectedKeys()) {
-                    ChannelHandler handler = (ChannelHandler) key.attachment();
-                    handler.handle(key.channel());
-                }
-                //clear the selected keys to prepare for the next set of events
-                selector.selectedKeys().clear();
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Failed during selector loop", e);
-        } finally {
-            cleanupOpenChannels();
-        }
-
-    }
-
 
     public void stop() {
         if (!isConnectionServiceRunning) {
@@ -81,104 +93,349 @@ public class ConnectionService {
         }
 
         isConnectionServiceRunning = false;
-        selector.wakeup();
-        try {
-            //wait for the selector to exit loop and clean up
-            listenerThread.join();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.stop();
         }
-        cleanupOpenChannels();
 
         httpService.stop();
     }
 
 
+    public int getNumOfShards() {
+        return eventLoops.size();
+    }
+
+    //explicit cross-shard communication: the message runs later on the given shard's event loop thread
+    public void sendToShard(int shard, Runnable message) {
+        if (shard < 0 || shard >= eventLoops.size()) {
+            throw new IllegalArgumentException("Invalid shard: " + shard);
+        }
+        eventLoops.get(shard).post(message);
+    }
+
+
     public void addTCPConnection(String hostname, int port) throws IOException {
+        addTCPConnection(hostname, port, Priority.MEDIUM);
+    }
+
+    //the requests that come in on the port are handled with the given priority (e.g. a separate port for the
+    //latency sensitive clients), since the protocol itself doesn't carry one
+    public void addTCPConnection(String hostname, int port, Priority priority) throws IOException {
+        if (priority == null) {
+            throw new IllegalArgumentException("Invalid priority");
+        }
         if (isConnectionServiceRunning) {
             throw new IllegalStateException("ConnectionService is running, can't add new connections");
         }
-        ServerSocketChannel tcpServerSocketChannel = ServerSocketChannel.open();
-        openChannels.add(tcpServerSocketChannel);
-        tcpServerSocketChannel.configureBlocking(false);
-        //bind the server to a specific port number
-        tcpServerSocketChannel.bind(new InetSocketAddress(hostname, port));
-        //register the server channel with the selector for "accept" events (new connections)
-        tcpServerSocketChannel.register(selector, SelectionKey.OP_ACCEPT, new TCPConnector());
+        if (eventLoops.size() > 1 && supportsReusePort(ServerSocketChannel.open())) {
+            //every shard listens on the same port, and the kernel spreads the new connections between them
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.listenTCP(hostname, port, true, priority);
+            }
+        } else {
+            //one shard accepts, and deals the connections out to all the shards
+            eventLoops.get(0).listenTCP(hostname, port, false, priority);
+        }
     }
 
     public void addUDPConnection(String hostname, int port) throws IOException {
+        addUDPConnection(hostname, port, Priority.MEDIUM);
+    }
+
+    public void addUDPConnection(String hostname, int port, Priority priority) throws IOException {
+        if (priority == null) {
+            throw new IllegalArgumentException("Invalid priority");
+        }
         if (isConnectionServiceRunning) {
             throw new IllegalStateException("ConnectionService is running, can't add new connections");
         }
-        DatagramChannel udpChannel = DatagramChannel.open();
-        openChannels.add(udpChannel);
-        udpChannel.configureBlocking(false);
-        //bind the DatagramChannel to the local address for listening to inbound UDP packets
-        udpChannel.bind(new InetSocketAddress(hostname, port));
-        //register the channel with the selector for reading events
-        udpChannel.register(selector, SelectionKey.OP_READ, new UDPHandler());
+        if (eventLoops.size() > 1 && supportsReusePort(DatagramChannel.open())) {
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.listenUDP(hostname, port, true, priority);
+            }
+        } else {
+            //datagrams can't be handed over: a single shard serves the UDP port
+            eventLoops.get(0).listenUDP(hostname, port, false, priority);
+        }
+    }
+
+
+    private static boolean supportsReusePort(NetworkChannel probeChannel) throws IOException {
+        try (NetworkChannel channel = probeChannel) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+
+    //pick the next shard round-robin (for connections handed over by the accepting shard, and HTTP requests)
+    private EventLoop nextEventLoop() {
+        return eventLoops.get(Math.floorMod(nextShard.getAndIncrement(), eventLoops.size()));
     }
 
 
-    private void cleanupOpenChannels() {
-        //close all client tcpClientChannels when the server shuts down
-        for (SelectableChannel channel : openChannels) {
+    //a selector thread with its connections. in the sharded runtime also the shard's worker pool
+    private class EventLoop {
+        private final int shard;
+        private final Selector selector;
+        private final Set<SelectableChannel> openChannels = new HashSet<>();  //event loop thread only (once started)
+        private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+        private final Thread listenerThread;
+        private final PriorityExecutor workerPool;    //null: use the shared pool of the request processing service
+        //time per iteration this loop may spend on running non-blocking commands itself. null: never run them inline
+        private final InlineExecutionBudget inlineBudget;
+        //hands this loop's requests to dedicated workers without a queue, instead of the pool and of inline
+        //execution (gateway.ring.size > 0). null: no ring
+        private final RequestRing requestRing;
+        //the requests of an iteration that go to the pool, handed over together at its end
+        //(gateway.threadpool.submitBatchSize > 1). null: every request is handed over on its own
+        private final RequestBatch requestBatch;
+
+        private EventLoop(int shard, PriorityExecutor workerPool) {
+            this.shard = shard;
+            this.workerPool = workerPool;
+            String threadName = (workerPool == null) ? "connection-listener" : "shard-" + shard;
+            listenerThread = new Thread(this::listen, threadName);
+            long inlineBudgetMicros = Long.getLong("gateway.inline.budgetMicros", DEFAULT_INLINE_BUDGET_MICROS);
+            inlineBudget = (inlineBudgetMicros > 0) ? new InlineExecutionBudget(inlineBudgetMicros, TimeUnit.MICROSECONDS) : null;
+            int ringSize = Integer.getInteger("gateway.ring.size", 0);
+            requestRing = (ringSize > 0) ? requestProcessingService.createRequestRing(ringSize,
+                    Integer.getInteger("gateway.ring.workers", DEFAULT_RING_WORKERS), threadName) : null;
+            int submitBatchSize = Integer.getInteger("gateway.threadpool.submitBatchSize", DEFAULT_SUBMIT_BATCH_SIZE);
+            requestBatch = (submitBatchSize > 1) ? requestProcessingService.createRequestBatch(workerPool, submitBatchSize) : null;
             try {
-                channel.close();
+                selector = Selector.open();
             } catch (IOException e) {
+                throw new RuntimeException("Selector failed to open", e);
+            }
+        }
+
+        private void start() {
+            listenerThread.start();
+        }
+
+        private void stop() {
+            selector.wakeup();
+            try {
+                //wait for the selector to exit loop and clean up
+                listenerThread.join();
+            } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
+            cleanupOpenChannels();
+            if (requestRing != null) {
+                requestRing.stop();
+            }
+            if (workerPool != null) {
+                workerPool.shutdown();
+                try {
+                    workerPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Error shutting down shard " + shard, e);
+                }
+            }
+        }
+
+
+        private void listen() {
+            try {
+                while (isConnectionServiceRunning) {
+                    //wait for events - blocking until an event is ready (or until a message is posted)
+                    selector.select();
+                    if (inlineBudget != null) {
+                        inlineBudget.startIteration();
+                    }
+                    //iterate over all selected keys (events)
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        ChannelHandler handler = (ChannelHandler) key.attachment();
+                        handler.handle(key.channel());
+                    }
+                    //clear the selected keys to prepare for the next set of events
+                    selector.selectedKeys().clear();
+                    if (requestBatch != null) {
+                        requestBatch.flush();
+                    }
+                    runMessages();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed during selector loop", e);
+            } finally {
+                cleanupOpenChannels();
+            }
+        }
+
+
+        //any thread
+        private void post(Runnable message) {
+            mailbox.add(message);
+            selector.wakeup();
+        }
+
+        private void runMessages() {
+            Runnable message;
+            while ((message = mailbox.poll()) != null) {
+                message.run();
+            }
+        }
+
+
+        private void listenTCP(String hostname, int port, boolean reusePort, Priority priority) throws IOException {
+            ServerSocketChannel tcpServerSocketChannel = ServerSocketChannel.open();
+            openChannels.add(tcpServerSocketChannel);
+            tcpServerSocketChannel.configureBlocking(false);
+            if (reusePort) {
+                tcpServerSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            //bind the server to a specific port number
+            tcpServerSocketChannel.bind(new InetSocketAddress(hostname, port));
+            //register the server channel with the selector for "accept" events (new connections)
+            tcpServerSocketChannel.register(selector, SelectionKey.OP_ACCEPT, new TCPConnector(this, !reusePort, priority));
+        }
+
+        private void listenUDP(String hostname, int port, boolean reusePort, Priority priority) throws IOException {
+            DatagramChannel udpChannel = DatagramChannel.open();
+            openChannels.add(udpChannel);
+            udpChannel.configureBlocking(false);
+            if (reusePort) {
+                udpChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            //bind the DatagramChannel to the local address for listening to inbound UDP packets
+            udpChannel.bind(new InetSocketAddress(hostname, port));
+            //register the channel with the selector for reading events
+            udpChannel.register(selector, SelectionKey.OP_READ, new UDPHandler(this, priority));
+        }
+
+
+        //event loop thread only
+        private void addClient(SocketChannel client, Priority priority) throws IOException {
+            openChannels.add(client);   //add all client sockets to collection that will be all closed when server dies
+            client.configureBlocking(false);
+            //register the client channel with the selector, interested in reading from the client
+            client.register(selector, SelectionKey.OP_READ, new TCPHandler(this, priority));
+        }
+
+
+        //the ring has a single producer, this loop's thread: requests that come from other threads (HTTP) use the pool
+        //the priority is the one of the port the request came in on
+        private void handleRequest(ByteBuffer request, RespondableChannel respondableChannel, Priority priority) {
+            if (requestRing != null && Thread.currentThread() == listenerThread) {
+                requestProcessingService.handleRequest(request, respondableChannel, priority, requestRing);
+            } else if (inlineBudget != null && Thread.currentThread() == listenerThread) {
+                requestProcessingService.handleRequest(request, respondableChannel, priority, workerPool, inlineBudget, requestBatch);
+            } else if (requestBatch != null && Thread.currentThread() == listenerThread) {
+                requestProcessingService.handleRequest(request, respondableChannel, priority, requestBatch);
+            } else if (workerPool == null) {
+                requestProcessingService.handleRequest(request, respondableChannel, priority);
+            } else {
+                requestProcessingService.handleRequest(request, respondableChannel, priority, workerPool);
+            }
+        }
+
+
+        private void cleanupOpenChannels() {
+            //close all client tcpClientChannels when the server shuts down
+            for (SelectableChannel channel : openChannels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            openChannels.clear();
         }
-        openChannels.clear();
     }
 
 
     private class TCPConnector implements ChannelHandler {
+        private final EventLoop eventLoop;
+        private final boolean isDealingConnections;
+        private final Priority priority;    //of the requests of the accepted connections
+
+        //isDealingConnections: hand the accepted connections out to all the shards instead of keeping them
+        private TCPConnector(EventLoop eventLoop, boolean isDealingConnections, Priority priority) {
+            this.eventLoop = eventLoop;
+            this.isDealingConnections = isDealingConnections;
+            this.priority = priority;
+        }
+
         @Override
         public void handle(SelectableChannel channel) {
             try {
                 if (channel instanceof ServerSocketChannel) {
+                    ConnectionAcceptEvent acceptEvent = new ConnectionAcceptEvent();
+                    acceptEvent.begin();
                     //accept the new connection and create a SocketChannel for the client
                     SocketChannel client = ((ServerSocketChannel) channel).accept();
-                    openChannels.add(client);   //add all client sockets to collection that will be all closed when server dies
-                    client.configureBlocking(false);
-                    //register the client channel with the selector, interested in reading from the client
-                    client.register(selector, SelectionKey.OP_READ, new TCPHandler());
+                    if (client == null) {
+                        //another shard took the connection
+                        return;
+                    }
+                    if (acceptEvent.shouldCommit()) {
+                        acceptEvent.remoteAddress = String.valueOf(client.getRemoteAddress());
+                        acceptEvent.commit();
+                    }
+                    EventLoop owner = isDealingConnections ? nextEventLoop() : eventLoop;
+                    if (owner == eventLoop) {
+                        eventLoop.addClient(client, priority);
+                    } else {
+                        //the connection belongs to another shard from now on: let its own thread register it
+                        owner.post(() -> registerClient(owner, client));
+                    }
                 }
             } catch (IOException e) {
                 throw new RuntimeException("Exception when accepting new TCP connection", e);
             }
         }
+
+        private void registerClient(EventLoop owner, SocketChannel client) {
+            try {
+                owner.addClient(client, priority);
+            } catch (IOException e) {
+                throw new RuntimeException("Exception when registering new TCP connection", e);
+            }
+        }
     }
 
 
     private class TCPHandler implements ChannelHandler, RespondableChannel {
+        private final EventLoop eventLoop;
+        private final Priority priority;
         private SocketChannel clientChannel;
 
+        private TCPHandler(EventLoop eventLoop, Priority priority) {
+            this.eventLoop = eventLoop;
+            this.priority = priority;
+        }
+
         @Override
         public void handle(SelectableChannel channel) {
             if (channel instanceof SocketChannel) {
                 clientChannel = (SocketChannel) channel;
                 ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
                 int bytesRead = 0;
+                RequestReadEvent readEvent = new RequestReadEvent();
+                readEvent.begin();
                 try {
                     bytesRead = ((SocketChannel) channel).read(byteBuffer); //TODO while loop wrap?
                 } catch (IOException e) {
                     throw new RuntimeException("Error reading the TCP message", e);
                 }
+                if (readEvent.shouldCommit()) {
+                    readEvent.protocol = Protocol.TCP.name();
+                    readEvent.bytes = bytesRead;
+                    readEvent.commit();
+                }
                 if (bytesRead == -1) {
                     //client closed the connection: close the channel and remove it from open channels set
                     try {
                         clientChannel.close();
-                        openChannels.remove(clientChannel);
+                        eventLoop.openChannels.remove(clientChannel);
                     } catch (IOException e) {
                         throw new RuntimeException("Error closing the channel", e);
                     }
                 }
                 byteBuffer.flip();
 
-                requestProcessingService.handleRequest(byteBuffer, this);
+                eventLoop.handleRequest(byteBuffer, this, priority);
             }
         }
 
@@ -190,20 +447,40 @@ public class ConnectionService {
                 throw new RuntimeException("Couldn't respond to client", e);
             }
         }
+
+        @Override
+        public Protocol getProtocol() {
+            return Protocol.TCP;
+        }
     }
 
 
     private class UDPHandler implements ChannelHandler {
+        private final EventLoop eventLoop;
+        private final Priority priority;
+
+        private UDPHandler(EventLoop eventLoop, Priority priority) {
+            this.eventLoop = eventLoop;
+            this.priority = priority;
+        }
+
         @Override
         public void handle(SelectableChannel channel) {
             if (channel instanceof DatagramChannel) {
                 ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+                RequestReadEvent readEvent = new RequestReadEvent();
+                readEvent.begin();
                 //handle message from client:
                 try {
                     InetSocketAddress clientAddress = (InetSocketAddress) ((DatagramChannel) channel).receive(byteBuffer);
+                    if (readEvent.shouldCommit()) {
+                        readEvent.protocol = Protocol.UDP.name();
+                        readEvent.bytes = byteBuffer.position();
+                        readEvent.commit();
+                    }
                     UdpResponse udpResponseHandler = new UdpResponse((DatagramChannel) channel, clientAddress);
                     byteBuffer.flip();
-                    requestProcessingService.handleRequest(byteBuffer, udpResponseHandler);
+                    eventLoop.handleRequest(byteBuffer, udpResponseHandler, priority);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -228,6 +505,11 @@ public class ConnectionService {
                     throw new RuntimeException("Couldn't respond to client", e);
                 }
             }
+
+            @Override
+            public Protocol getProtocol() {
+                return Protocol.UDP;
+            }
         }
     }
 
@@ -243,12 +525,18 @@ public class ConnectionService {
         private void initHttpServer() {
             //register URIs (resources) and their handlers
             registerContexts();
-            httpServer.setExecutor(null);
+            //by default the exchanges run on the server's dispatcher thread. a handler that blocks (e.g. waits for
+            //the request's response) stalls every other exchange, so optionally give each exchange a virtual thread
+            if (Boolean.getBoolean("gateway.http.virtualThreads") && VirtualThreads.isSupported()) {
+                httpServer.setExecutor(VirtualThreads.newThreadPerTaskExecutor("http-"));
+            } else {
+                httpServer.setExecutor(null);
+            }
         }
 
         private void start() {
             httpServer.start();
-            System.out.println("Server started on address " + httpServer.getAddress());
+            LOGGER.info("Server started on address {}", httpServer.getAddress());
         }
 
         private void stop() {
@@ -261,13 +549,14 @@ public class ConnectionService {
 
             //set one default context "/" for all requests
             httpServer.createContext("/", new InitialHttpHandler());
+            httpServer.createContext("/metrics", new MetricsHttpHandler());
         }
 
         //initial HTTP handler for any URI request ("/")
         private class InitialHttpHandler implements HttpHandler {
             @Override
             public void handle(HttpExchange httpExchange) {
-                System.out.println("inside initial response handler");
+                LOGGER.debug("inside initial response handler");
                 //initializing the composition/chain of responsibility handlers
                 CompanyHandler companyHandler = new CompanyHandler(new ProductHandler(null));
                 String[] uriSegments = httpExchange.getRequestURI().getPath().split("/");
@@ -287,10 +576,7 @@ public class ConnectionService {
 
             @Override
             public void handle(HttpExchange exchange, String[] uriSegments) {
-                //test prints:
-                System.out.println("inside company handler:");
-                System.out.println(exchange.getRequestURI().getPath());
-                System.out.println(Arrays.toString(uriSegments));
+                LOGGER.debug("inside company handler: {} {}", exchange.getRequestURI().getPath(), uriSegments);
 
                 if (uriSegments.length < 1) {
                     //if the URI is empty ("/")
@@ -404,7 +690,7 @@ public class ConnectionService {
             try {
                 exchange.sendResponseHeaders(404, -1);
             } catch (IOException e) {
-                e.printStackTrace();
+                LOGGER.error("Failed sending 404 response", e);
             }
         }
 
@@ -440,7 +726,7 @@ public class ConnectionService {
         }
 
         private void handlePostCompany(HttpExchange exchange) {
-            System.out.println("inside POST handler");
+            LOGGER.debug("inside POST handler");
             //read the request body and parse it as JSON
             JsonObject httpBodyJson;
             try (InputStream inputStream = exchange.getRequestBody()) {
@@ -453,15 +739,15 @@ public class ConnectionService {
             }
 
             //now `requestJson` contains the JSON object from the request body
-            System.out.println(httpBodyJson.toString());  //for debugging: Print out the parsed JSON
+            LOGGER.debug("POST body: {}", httpBodyJson);
 
             //build the request JSON from Key=registerCompany and Data=<body of JSON request>
             JsonObject requestJson = new JsonObject();
             requestJson.addProperty("Key", "registerCompany");
             requestJson.add("Data", httpBodyJson);
-            System.out.println("\n" + requestJson);  //for debugging: Print out the complete JSON
+            LOGGER.debug("request: {}", requestJson);
 
-            requestProcessingService.handleRequest(CommandParser.JsonToByteBuffer(requestJson), new HttpResponder(exchange));
+            nextEventLoop().handleRequest(CommandParser.JsonToByteBuffer(requestJson), new HttpResponder(exchange), HTTP_REQUEST_PRIORITY);
         }
 
         private void handleProduct(HttpExchange exchange) {
@@ -490,6 +776,29 @@ public class ConnectionService {
                     throw new RuntimeException("Failed responding to HTTP client", e);
                 }
             }
+
+            @Override
+            public Protocol getProtocol() {
+                return Protocol.HTTP;
+            }
+        }
+
+
+        //Prometheus scrape endpoint for the request processing metrics
+        private class MetricsHttpHandler implements HttpHandler {
+            @Override
+            public void handle(HttpExchange httpExchange) throws IOException {
+                if (!httpExchange.getRequestMethod().equals("GET")) {
+                    respondNotFound(httpExchange);
+                    return;
+                }
+                byte[] metricsText = requestProcessingService.getRequestMetrics().toPrometheusText().getBytes(StandardCharsets.UTF_8);
+                httpExchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                try (OutputStream os = httpExchange.getResponseBody()) {
+                    httpExchange.sendResponseHeaders(200, metricsText.length);
+                    os.write(metricsText);
+                }
+            }
         }
 
 
@@ -552,7 +861,7 @@ public class ConnectionService {
                 requestJson.add("Data", httpBodyJson);
                 System.out.println("\n" + requestJson);  //for debugging: Print out the complete JSON
 
-                requestProcessingService.handleRequest(CommandParser.JsonToByteBuffer(requestJson), new HttpResponder(httpExchange));
+                nextEventLoop().handleRequest(CommandParser.JsonToByteBuffer(requestJson), new HttpResponder(httpExchange));
             }
 
 
@@ -562,7 +871,7 @@ public class ConnectionService {
                 //simulate accessing database inside a specific Command...
                 String response = "GET response = " + query;
                 ByteBuffer byteBuffer = ByteBuffer.wrap(response.getBytes());
-                requestProcessingService.handleRequest(byteBuffer, new HttpResponder(httpExchange));
+                nextEventLoop().handleRequest(byteBuffer, new HttpResponder(httpExchange));
             }
 
             private void handleUnsupportedRequest(HttpExchange httpExchange) {
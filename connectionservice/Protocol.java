@@ -0,0 +1,7 @@
+package connectionservice;
+
+public enum Protocol {
+    TCP,
+    UDP,
+    HTTP
+}
@@ -4,4 +4,6 @@ import java.nio.ByteBuffer;
 
 public interface RespondableChannel {
     void respond(ByteBuffer data);
+
+    Protocol getProtocol();
 }
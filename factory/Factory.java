@@ -1,12 +1,13 @@
 package factory;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 public class Factory<K, T, D> {
 
-    private final Map<K, Function<D, ? extends T>> creationFunctions = new HashMap<>();
+    //concurrent: functions are added and replaced (plugins) while requests create objects
+    private final Map<K, Function<D, ? extends T>> creationFunctions = new ConcurrentHashMap<>();
 
     public T create(K key, D data) {
         Function<D, ? extends T> createFunction = creationFunctions.get(key);
@@ -17,8 +18,14 @@ public class Factory<K, T, D> {
         return createFunction.apply(data);
     }
 
-    public void add(K key, Function<D, ? extends T> createFunction) {
-        creationFunctions.put(key, createFunction);
+    //returns the function the key was mapped to before, or null
+    public Function<D, ? extends T> add(K key, Function<D, ? extends T> createFunction) {
+        return creationFunctions.put(key, createFunction);
+    }
+
+    //removes the key only if it's still mapped to the given function. returns false otherwise
+    public boolean remove(K key, Function<D, ? extends T> createFunction) {
+        return creationFunctions.remove(key, createFunction);
     }
 
 }
@@ -0,0 +1,13 @@
+package factory;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+//marks a Command whose execute() is short and never blocks (no I/O, DB or locks): such a command may be executed
+//directly on the selector thread that read its request, instead of being handed off to the thread pool
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface NonBlocking {
+}
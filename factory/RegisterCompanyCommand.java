@@ -3,11 +3,13 @@ package factory;
 import com.google.gson.JsonObject;
 import connectionservice.RespondableChannel;
 import gatewayserver.CommandParser;
+import logger.Logger;
 
 
 import java.nio.ByteBuffer;
 
 public class RegisterCompanyCommand implements Command {
+    private static final Logger LOGGER = Logger.getLogger(RegisterCompanyCommand.class);
     private final JsonObject data;
 
     public RegisterCompanyCommand(JsonObject data) {
@@ -22,7 +24,7 @@ public class RegisterCompanyCommand implements Command {
     @Override
     public void execute(RespondableChannel respondableChannel) {
         try {
-            System.out.println("registering company command!");
+            LOGGER.debug("registering company command!");
             //get company name from JSON
             String companyName = data.get("Name").getAsString();
 
@@ -0,0 +1,16 @@
+package factory;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+//sample request data of a plugin Command (JSON objects, as the "Data" of a request). when the command's JAR is
+//deployed while the server runs, the command is executed with these samples until the JIT has compiled it, and only
+//then gets live traffic. the responses are discarded, but any other side effect (e.g. a DB write) happens - so the
+//samples must be safe to execute many times
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface WarmUp {
+    String[] value();
+}
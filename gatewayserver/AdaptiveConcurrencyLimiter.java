@@ -0,0 +1,122 @@
+package gatewayserver;
+
+import threadpool.Priority;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+//gradient based concurrency limiter: the allowed number of in-flight requests is adjusted according to
+//the ratio between the long term (no-load) latency and the latency currently observed.
+//when latency rises above the baseline the limit shrinks, when latency is at baseline the limit grows.
+public class AdaptiveConcurrencyLimiter {
+    private static final int DEFAULT_INITIAL_LIMIT = 20;
+    private static final int DEFAULT_MIN_LIMIT = 1;
+    private static final int DEFAULT_MAX_LIMIT = 1000;
+    private static final double SMOOTHING = 0.2;           //how fast the limit follows the new estimate
+    private static final double LONG_RTT_WEIGHT = 0.01;    //weight of a new sample in the long term (baseline) latency
+    private static final double SHORT_RTT_WEIGHT = 0.2;    //weight of a new sample in the short term latency
+    private static final double MIN_GRADIENT = 0.5;        //never shrink the limit by more than half in a single update
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final ReentrantLock limitUpdateLock = new ReentrantLock();
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile int limit;
+    private double estimatedLimit;      //guarded by limitUpdateLock
+    private double longRttNanos = 0;    //guarded by limitUpdateLock
+    private double shortRttNanos = 0;   //guarded by limitUpdateLock
+
+
+    public AdaptiveConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid concurrency limits");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.estimatedLimit = initialLimit;
+    }
+
+
+    //try to admit a new request. lower priorities only get a part of the limit, so they are shed first
+    public boolean tryAcquire(Priority priority) {
+        int allowedInFlight = Math.max(1, (int) (limit * shareOfLimit(priority)));
+        while (true) {
+            int currentInFlight = inFlight.get();
+            if (currentInFlight >= allowedInFlight) {
+                return false;
+            }
+            if (inFlight.compareAndSet(currentInFlight, currentInFlight + 1)) {
+                return true;
+            }
+        }
+    }
+
+
+    //release an admitted request, and update the limit according to the request's latency (admission to completion).
+    //the update is a sample: if another completion is updating the limit right now, this latency is dropped instead
+    //of making every worker wait for the lock. under load that still leaves plenty of samples
+    public void release(long latencyNanos) {
+        int inFlightBeforeRelease = inFlight.getAndDecrement();
+        if (latencyNanos <= 0 || !limitUpdateLock.tryLock()) {
+            return;
+        }
+
+        try {
+            if (longRttNanos == 0) {
+                //first sample: initialize both averages
+                longRttNanos = latencyNanos;
+                shortRttNanos = latencyNanos;
+                return;
+            }
+            shortRttNanos += SHORT_RTT_WEIGHT * (latencyNanos - shortRttNanos);
+            longRttNanos += LONG_RTT_WEIGHT * (latencyNanos - longRttNanos);
+
+            //after a long stretch of high latency the baseline has drifted up with it. once the latency drops the
+            //gradient is capped at 1 anyway, but a stale baseline would hide the next rise until the latency passes
+            //it - so keep the baseline within twice the current latency
+            if (longRttNanos / shortRttNanos > 2) {
+                longRttNanos = shortRttNanos * 2;
+            }
+
+            //don't grow the limit when we are far from using it (not enough load to judge)
+            if (inFlightBeforeRelease < estimatedLimit / 2) {
+                return;
+            }
+
+            double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, longRttNanos / shortRttNanos));
+            //allow a small queue (sqrt of the limit) on top of the latency based estimate
+            double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            estimatedLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+            limit = (int) estimatedLimit;
+        } finally {
+            limitUpdateLock.unlock();
+        }
+    }
+
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+
+    private double shareOfLimit(Priority priority) {
+        switch (priority) {
+            case HIGH:
+                return 1.0;
+            case MEDIUM:
+                return 0.9;
+            default:
+                return 0.7;
+        }
+    }
+}
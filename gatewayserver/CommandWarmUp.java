@@ -0,0 +1,101 @@
+package gatewayserver;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import connectionservice.Protocol;
+import connectionservice.RespondableChannel;
+import factory.Command;
+import factory.Factory;
+import logger.Logger;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+//runs a newly deployed command with its sample requests (see WarmUp) before it gets live traffic: a fresh class runs
+//interpreted for its first few thousand calls, which shows up as a latency spike on its key after every deploy.
+//the samples go through the same path as a request - parse, factory and execute - with the responses discarded.
+//the warm-up ends when the JIT has settled (no compilations for a few rounds) or when the time budget runs out
+class CommandWarmUp {
+    private static final Logger LOGGER = Logger.getLogger(CommandWarmUp.class);
+    private static final int ROUND_SIZE = 1000;
+    private static final int MIN_EXECUTIONS = 10000;    //past the tiered compilation thresholds of a simple command
+    private static final int QUIET_ROUNDS_TO_SETTLE = 3;
+    private static final RespondableChannel DISCARDING_CHANNEL = new RespondableChannel() {
+        @Override
+        public void respond(ByteBuffer data) {
+        }
+
+        @Override
+        public Protocol getProtocol() {
+            return Protocol.TCP;
+        }
+    };
+    private final Parser parser;
+    private final long budgetNanos;
+    private final CompilationMXBean compilationMXBean;  //null if the JVM doesn't report compilation time
+
+    CommandWarmUp(Parser parser, long budget, TimeUnit unit) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Warm-up budget must be positive");
+        }
+        this.parser = parser;
+        this.budgetNanos = unit.toNanos(budget);
+        CompilationMXBean compilationBean = ManagementFactory.getCompilationMXBean();
+        this.compilationMXBean = (compilationBean != null && compilationBean.isCompilationTimeMonitoringSupported()) ? compilationBean : null;
+    }
+
+
+    //returns the number of executions. throws if a sample is invalid or fails
+    int warmUp(String commandKey, Function<JsonObject, Command> recipe, String[] sampleData) {
+        if (sampleData.length == 0) {
+            return 0;
+        }
+        //a factory of its own, so the live factory keeps serving the previous version meanwhile
+        Factory<String, Command, JsonObject> warmUpFactory = new Factory<>();
+        warmUpFactory.add(commandKey, recipe);
+        byte[][] requests = new byte[sampleData.length][];
+        for (int i = 0; i < sampleData.length; ++i) {
+            JsonObject request = new JsonObject();
+            request.addProperty("Key", commandKey);
+            request.add("Data", JsonParser.parseString(sampleData[i]).getAsJsonObject());
+            requests[i] = request.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        long startTime = System.nanoTime();
+        long lastCompilationTime = compilationTime();
+        int quietRounds = 0;
+        int executions = 0;
+        boolean isSettled = false;
+        while (!isSettled && System.nanoTime() - startTime < budgetNanos) {
+            for (int i = 0; i < ROUND_SIZE; ++i) {
+                Map.Entry<String, JsonObject> request = parser.parse(ByteBuffer.wrap(requests[executions % requests.length]));
+                warmUpFactory.create(request.getKey(), request.getValue()).execute(DISCARDING_CHANNEL);
+                ++executions;
+            }
+            //the compilation time is of the whole JVM, so other compilations only make the warm-up longer
+            long currentCompilationTime = compilationTime();
+            quietRounds = (currentCompilationTime == lastCompilationTime) ? quietRounds + 1 : 0;
+            lastCompilationTime = currentCompilationTime;
+            isSettled = executions >= MIN_EXECUTIONS && quietRounds >= QUIET_ROUNDS_TO_SETTLE;
+        }
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        if (isSettled) {
+            LOGGER.info("Warmed up {} in {}ms", commandKey, elapsedMillis);
+        } else {
+            LOGGER.warn("Warm-up budget of {} ran out after {} executions", commandKey, executions);
+        }
+        return executions;
+    }
+
+
+    //without compilation time monitoring every round looks quiet, so the warm-up runs MIN_EXECUTIONS executions
+    private long compilationTime() {
+        return (compilationMXBean == null) ? 0 : compilationMXBean.getTotalCompilationTime();
+    }
+}
@@ -7,13 +7,26 @@ import java.nio.ByteBuffer;
 
 
 public class GatewayServer {
+    private static final int DEFAULT_WORKERS_PER_SHARD = 2;
     private final RequestProcessingService RPS;
     private final ConnectionService connectionService;
+    private final boolean isSharded;
 
     public GatewayServer() {
+        //-Dgateway.shards=N switches to the sharded runtime (e.g. one shard per core)
+        this(Integer.getInteger("gateway.shards", 0), Integer.getInteger("gateway.workersPerShard", DEFAULT_WORKERS_PER_SHARD));
+    }
+
+    //numOfShards 0: one selector thread and a shared worker pool. otherwise every shard has its own selector thread,
+    //connections and workersPerShard workers
+    public GatewayServer(int numOfShards, int workersPerShard) {
+        if (numOfShards < 0) {
+            throw new IllegalArgumentException("Number of shards cannot be negative");
+        }
         Parser parser = new CommandParser();
         this.RPS = new RequestProcessingService(parser);
-        connectionService = new ConnectionService(RPS);
+        isSharded = numOfShards > 0;
+        connectionService = isSharded ? new ConnectionService(RPS, numOfShards, workersPerShard) : new ConnectionService(RPS);
         setupConnectionService();
     }
 
@@ -27,7 +40,12 @@ public class GatewayServer {
     }
 
     public void startServer() {
-        RPS.start();
+        if (isSharded) {
+            //the shards bring their own workers
+            RPS.start(0);
+        } else {
+            RPS.start();
+        }
         connectionService.start();
     }
 
@@ -0,0 +1,31 @@
+package gatewayserver;
+
+import java.util.concurrent.TimeUnit;
+
+//the time a selector thread may spend per select() iteration on executing non-blocking commands itself.
+//once it's spent, the rest of the iteration's requests go to the thread pool as usual.
+//owned by a single event loop thread - not thread safe
+public class InlineExecutionBudget {
+    private final long budgetPerIterationNanos;
+    private long spentNanos = 0;
+
+    public InlineExecutionBudget(long budgetPerIteration, TimeUnit unit) {
+        if (budgetPerIteration <= 0) {
+            throw new IllegalArgumentException("Inline execution budget must be positive");
+        }
+        this.budgetPerIterationNanos = unit.toNanos(budgetPerIteration);
+    }
+
+    //call once at the start of every event loop iteration
+    public void startIteration() {
+        spentNanos = 0;
+    }
+
+    boolean isAvailable() {
+        return spentNanos < budgetPerIterationNanos;
+    }
+
+    void charge(long nanos) {
+        spentNanos += nanos;
+    }
+}
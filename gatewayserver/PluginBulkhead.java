@@ -0,0 +1,95 @@
+package gatewayserver;
+
+import threadpool.ExecutionMode;
+import threadpool.Priority;
+import threadpool.RejectionPolicy;
+import threadpool.ThreadPool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+//the share of the server one plugin JAR gets. with a pool of its own, the JAR's commands run on its threads (at most
+//numOfThreads at a time, and at most queueCapacity waiting), so a plugin that blocks or spins only stalls its own
+//commands - the shared workers just hand its requests over. either way the CPU time of its commands is accounted
+class PluginBulkhead {
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean IS_CPU_TIME_SUPPORTED = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+    private final String jarName;
+    private final ThreadPool pool;  //null: the commands run on the thread that created them
+    private final LongAdder cpuNanos = new LongAdder();
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    //numOfThreads 0 means no pool of its own (accounting only)
+    PluginBulkhead(String jarName, int numOfThreads, int queueCapacity) {
+        if (numOfThreads < 0) {
+            throw new IllegalArgumentException("Number of threads cannot be negative");
+        }
+        this.jarName = jarName;
+        this.pool = (numOfThreads == 0) ? null : new ThreadPool(numOfThreads, ExecutionMode.SHARED_QUEUE, queueCapacity, RejectionPolicy.REJECT);
+    }
+
+
+    boolean hasPool() {
+        return pool != null;
+    }
+
+    //throws RejectedExecutionException when the plugin's queue is full
+    void execute(Runnable task, Priority priority) {
+        try {
+            pool.execute(task, priority);
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            throw e;
+        }
+    }
+
+
+    //the CPU time of the current thread, to pass to recordExecution. negative if it can't be measured
+    //(e.g. on a virtual thread)
+    long currentThreadCpuTime() {
+        return IS_CPU_TIME_SUPPORTED ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : -1;
+    }
+
+    //called on the thread that executed the command, right after it
+    void recordExecution(long cpuStartTime) {
+        executions.increment();
+        if (cpuStartTime >= 0) {
+            long cpuEndTime = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+            if (cpuEndTime >= cpuStartTime) {
+                cpuNanos.add(cpuEndTime - cpuStartTime);
+            }
+        }
+    }
+
+
+    String getJarName() {
+        return jarName;
+    }
+
+    long getCpuNanos() {
+        return cpuNanos.sum();
+    }
+
+    long getExecutions() {
+        return executions.sum();
+    }
+
+    long getRejections() {
+        return rejections.sum();
+    }
+
+    int getQueueSize() {
+        return (pool == null) ? 0 : pool.getQueueSize();
+    }
+
+
+    //commands that are already queued are still executed
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package gatewayserver;
+
+import com.google.gson.JsonObject;
+import connectionservice.Protocol;
+import connectionservice.RespondableChannel;
+import factory.Command;
+import logger.LogLevel;
+import logger.Logger;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+//hot-reloads a plugin JAR over and over through the plugin directory watcher, and prints the metaspace, the loaded
+//and unloaded classes and the open file descriptors along the way. every tenth command is created before a reload
+//and executed after it, on its retired generation. from the baseline at reload BASELINE_RELOAD to the end, the
+//metaspace must stay within METASPACE_MARGIN_KB, classes must be unloaded and no file descriptor may stay open -
+//otherwise retired generations (class loaders, open JARs) are leaking, and it exits with 1.
+//needs a JDK (it compiles its own plugin). it's not part of the server
+public class PluginReloadBenchmark {
+    private static final int NUM_OF_RELOADS = 1000;
+    private static final int BASELINE_RELOAD = 100;     //past the warm-up of the JIT and the server's own classes
+    //a leaked generation holds about 100KB of metaspace, so 900 of them are far above this
+    private static final long METASPACE_MARGIN_KB = 2048;
+    private static final int NUM_OF_HELPER_CLASSES = 10;    //so every generation has some metaspace to leak
+    private static final long RELOAD_TIMEOUT_MILLIS = 10000;
+    private static final String COMMAND_KEY = "ReloadCommand";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            System.out.println("no Java compiler (run it on a JDK)");
+            return;
+        }
+        Logger.setLevel(LogLevel.WARN);
+        System.setProperty("gateway.plugins.quietMillis", "10");
+        Path workDirectory = Files.createTempDirectory("plugin-reload");
+        Path pluginDirectory = Files.createDirectory(workDirectory.resolve("plugins"));
+        //two builds that answer differently, so every copy is a new version
+        Path[] builds = {buildPlugin(compiler, workDirectory, "A"), buildPlugin(compiler, workDirectory, "B")};
+        Path pluginJar = pluginDirectory.resolve("reload.jar");
+        Files.copy(builds[0], pluginJar);
+
+        RequestProcessingService requestProcessingService = new RequestProcessingService(new CommandParser());
+        requestProcessingService.startPluginService(pluginDirectory.toString());
+        boolean isStable = false;
+        try {
+            isStable = reloadRepeatedly(requestProcessingService, builds, pluginJar);
+        } catch (IllegalStateException e) {
+            System.out.println("FAILED: " + e.getMessage());
+        } finally {
+            requestProcessingService.stop();
+            try (Stream<Path> files = Files.walk(workDirectory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        //the plugin loaders are not daemon threads
+        System.exit(isStable ? 0 : 1);
+    }
+
+
+    //returns false if something leaked
+    private static boolean reloadRepeatedly(RequestProcessingService requestProcessingService, Path[] builds, Path pluginJar) throws IOException, InterruptedException {
+        MemoryPoolMXBean metaspace = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getName().equals("Metaspace")).findFirst().orElse(null);
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        long baselineMetaspaceKB = -1;
+        long baselineUnloadedClasses = -1;
+        int baselineOpenFiles = -1;
+        long metaspaceKB = -1;
+        int openFiles = -1;
+        int inFlightCommands = 0;
+        long startTime = System.nanoTime();
+        for (int i = 1; i <= NUM_OF_RELOADS; ++i) {
+            Command inFlightCommand = (i % 10 == 0) ? requestProcessingService.createCommand(COMMAND_KEY, new JsonObject()) : null;
+            String version = (i % 2 == 0) ? "A" : "B";
+            Files.copy(builds[i % 2], pluginJar, StandardCopyOption.REPLACE_EXISTING);
+            awaitVersion(requestProcessingService, version);
+            if (inFlightCommand != null) {
+                execute(inFlightCommand);
+                ++inFlightCommands;
+            }
+            if (i == BASELINE_RELOAD || i % 250 == 0) {
+                System.gc();
+                Thread.sleep(200);
+                metaspaceKB = (metaspace == null) ? -1 : metaspace.getUsage().getUsed() / 1024;
+                openFiles = countOpenFiles();
+                System.out.printf("reload %4d  metaspace %6d KB  loaded classes %5d  unloaded %6d  open fds %d%n", i,
+                        metaspaceKB, classLoading.getLoadedClassCount(), classLoading.getUnloadedClassCount(), openFiles);
+                if (i == BASELINE_RELOAD) {
+                    baselineMetaspaceKB = metaspaceKB;
+                    baselineUnloadedClasses = classLoading.getUnloadedClassCount();
+                    baselineOpenFiles = openFiles;
+                }
+            }
+        }
+        System.out.printf("%d reloads in %ds, %d commands executed on a retired generation%n", NUM_OF_RELOADS,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime), inFlightCommands);
+
+        //the last sample was taken after the last reload
+        boolean isStable = true;
+        if (metaspaceKB - baselineMetaspaceKB > METASPACE_MARGIN_KB) {
+            System.out.printf("FAILED: metaspace grew by %d KB since reload %d%n", metaspaceKB - baselineMetaspaceKB, BASELINE_RELOAD);
+            isStable = false;
+        }
+        if (classLoading.getUnloadedClassCount() <= baselineUnloadedClasses) {
+            System.out.printf("FAILED: no class was unloaded since reload %d%n", BASELINE_RELOAD);
+            isStable = false;
+        }
+        if (openFiles > baselineOpenFiles) {
+            System.out.printf("FAILED: %d more open file descriptors than at reload %d%n", openFiles - baselineOpenFiles, BASELINE_RELOAD);
+            isStable = false;
+        }
+        if (isStable) {
+            System.out.println("stable: no class loader or JAR leaked");
+        }
+        return isStable;
+    }
+
+
+    private static void awaitVersion(RequestProcessingService requestProcessingService, String version) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RELOAD_TIMEOUT_MILLIS);
+        while (!version.equals(execute(requestProcessingService.createCommand(COMMAND_KEY, new JsonObject())))) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Version " + version + " wasn't loaded in time");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static String execute(Command command) {
+        String[] response = new String[1];
+        command.execute(new RespondableChannel() {
+            @Override
+            public void respond(ByteBuffer data) {
+                response[0] = StandardCharsets.UTF_8.decode(data).toString();
+            }
+
+            @Override
+            public Protocol getProtocol() {
+                return Protocol.TCP;
+            }
+        });
+        return response[0];
+    }
+
+
+    private static Path buildPlugin(JavaCompiler compiler, Path workDirectory, String version) throws IOException {
+        Path sourceDirectory = Files.createDirectories(workDirectory.resolve("src" + version).resolve("reloadplugin"));
+        Path classDirectory = Files.createDirectories(workDirectory.resolve("classes" + version));
+        StringBuilder helperCalls = new StringBuilder();
+        for (int i = 0; i < NUM_OF_HELPER_CLASSES; ++i) {
+            StringBuilder helper = new StringBuilder("package reloadplugin;\npublic class Helper" + i + " {\n");
+            for (int j = 0; j < 50; ++j) {
+                helper.append("    public static int m").append(j).append("(int x) { return x * ").append(j).append(" + ").append(i).append("; }\n");
+            }
+            Files.write(sourceDirectory.resolve("Helper" + i + ".java"), helper.append("}\n").toString().getBytes(StandardCharsets.UTF_8));
+            helperCalls.append(" + Helper").append(i).append(".m").append(i).append("(1)");
+        }
+        String command = "package reloadplugin;\n"
+                + "public class " + COMMAND_KEY + " implements factory.Command {\n"
+                + "    private final com.google.gson.JsonObject data;\n"
+                + "    public " + COMMAND_KEY + "(com.google.gson.JsonObject data) { this.data = data; }\n"
+                + "    public com.google.gson.JsonObject getData() { return data; }\n"
+                + "    public void execute(connectionservice.RespondableChannel channel) {\n"
+                + "        int checksum = 0" + helperCalls + ";\n"
+                + "        channel.respond(java.nio.ByteBuffer.wrap((checksum >= 0 ? \"" + version + "\" : \"\").getBytes()));\n"
+                + "    }\n"
+                + "}\n";
+        Path commandSource = sourceDirectory.resolve(COMMAND_KEY + ".java");
+        Files.write(commandSource, command.getBytes(StandardCharsets.UTF_8));
+
+        String[] sources;
+        try (Stream<Path> files = Files.list(sourceDirectory)) {
+            sources = files.map(Path::toString).toArray(String[]::new);
+        }
+        String[] compilerArgs = new String[sources.length + 4];
+        compilerArgs[0] = "-cp";
+        compilerArgs[1] = System.getProperty("java.class.path");
+        compilerArgs[2] = "-d";
+        compilerArgs[3] = classDirectory.toString();
+        System.arraycopy(sources, 0, compilerArgs, 4, sources.length);
+        if (compiler.run(null, null, null, compilerArgs) != 0) {
+            throw new IllegalStateException("Couldn't compile the plugin");
+        }
+
+        Path jar = workDirectory.resolve("reload-" + version + ".jar");
+        try (JarOutputStream jarStream = new JarOutputStream(Files.newOutputStream(jar));
+             Stream<Path> classFiles = Files.walk(classDirectory)) {
+            for (Path classFile : (Iterable<Path>) classFiles.filter(Files::isRegularFile)::iterator) {
+                jarStream.putNextEntry(new JarEntry(classDirectory.relativize(classFile).toString().replace(File.separatorChar, '/')));
+                jarStream.write(Files.readAllBytes(classFile));
+                jarStream.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    //-1 where /proc isn't available
+    private static int countOpenFiles() {
+        String[] fileDescriptors = new File("/proc/self/fd").list();
+        return (fileDescriptors == null) ? -1 : fileDescriptors.length;
+    }
+}
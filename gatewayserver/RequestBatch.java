@@ -0,0 +1,55 @@
+package gatewayserver;
+
+import threadpool.Evictable;
+import threadpool.Priority;
+import threadpool.PriorityExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+//the requests a selector thread read in one loop iteration, on their way to the same pool: flush() hands them over
+//with a single queue insertion (see PriorityExecutor.executeAll) instead of one insertion - and one worker wake-up -
+//per request. a full batch, or a request of another priority, flushes the batch early.
+//created by RequestProcessingService.createRequestBatch. owned by a single event loop thread - not thread safe
+public class RequestBatch {
+    private final Supplier<PriorityExecutor> workerPool;
+    private final int maxSize;
+    private final List<Runnable> requestTasks;
+    private Priority priority = null;
+
+    RequestBatch(Supplier<PriorityExecutor> workerPool, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.workerPool = workerPool;
+        this.maxSize = maxSize;
+        this.requestTasks = new ArrayList<>(maxSize);
+    }
+
+
+    //call at the end of every event loop iteration. requests the pool rejects are answered busy
+    public void flush() {
+        if (requestTasks.isEmpty()) {
+            return;
+        }
+        int numOfAccepted = workerPool.get().executeAll(requestTasks, priority);
+        for (int i = numOfAccepted; i < requestTasks.size(); ++i) {
+            ((Evictable) requestTasks.get(i)).onEvicted();
+        }
+        requestTasks.clear();
+    }
+
+
+    //the request task must be Evictable, to be answered if the pool rejects it
+    void add(Runnable requestTask, Priority p) {
+        if (p != priority) {
+            flush();
+            priority = p;
+        }
+        requestTasks.add(requestTask);
+        if (requestTasks.size() >= maxSize) {
+            flush();
+        }
+    }
+}
@@ -1,10 +1,29 @@
 package gatewayserver;
 
+import connectionservice.Protocol;
 import connectionservice.RespondableChannel;
 import factory.*;
+import jfrevents.CommandExecuteEvent;
+import jfrevents.RespondEvent;
+import logger.Logger;
+import metrics.PrometheusSource;
+import metrics.RequestMetrics;
+import metrics.Stage;
 import pluginservice.DirMonitor;
 import pluginservice.DynamicJarLoader;
+import pluginservice.PluginClassInfo;
+import pluginservice.PluginGeneration;
+import pluginservice.PluginIndex;
+import threadpool.ElasticPoolController;
+import threadpool.Evictable;
+import threadpool.ExecutionMode;
+import threadpool.Priority;
+import threadpool.PriorityExecutor;
+import threadpool.RejectionPolicy;
 import threadpool.ThreadPool;
+import threadpool.VirtualThreadExecutor;
+import threadpool.VirtualThreads;
+import waitingqueue.WaitStrategy;
 
 import com.google.gson.JsonObject;
 
@@ -13,31 +32,155 @@ import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 public class RequestProcessingService {
+    private static final Logger LOGGER = Logger.getLogger(RequestProcessingService.class);
+    private static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    private static final long DEFAULT_AGING_INTERVAL_MILLIS = 1000;
+    private static final long DEFAULT_MAX_INLINE_EXECUTION_MICROS = 200;
+    private static final int INLINE_OVERRUNS_TO_DEMOTE = 3;
+    private static final int INLINE_WARM_UP_EXECUTIONS = 100;   //the first (cold, interpreted) executions are judged leniently
+    private static final int INLINE_GROSS_OVERRUN_FACTOR = 10;  //a cold execution this many times over its time is an overrun
+    private static final int DEFAULT_VIRTUAL_MAX_CONCURRENCY = 1000;
+    private static final int DEFAULT_RING_BATCH_SIZE = 32;
+    private static final long DEFAULT_PLUGIN_WARM_UP_MILLIS = 2000;
+    private static final int DEFAULT_PLUGIN_BULKHEAD_QUEUE_CAPACITY = 256;
     private final Parser parser;
     private final Factory<String, Command, JsonObject> commandFactory = new Factory<>();
-    private ThreadPool threadPool;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter = new AdaptiveConcurrencyLimiter();
+    private final RequestMetrics requestMetrics = new RequestMetrics();
+    private PriorityExecutor threadPool;
+    private ElasticPoolController elasticPoolController = null;
+    private PluginService pluginService = null;
+    //keys of the @NonBlocking commands that may run on the selector thread, and their inline execution record
+    private final Set<String> inlineCommandKeys = ConcurrentHashMap.newKeySet();
+    private final Map<String, InlineExecutionRecord> inlineExecutionRecords = new ConcurrentHashMap<>();
+    private final long maxInlineExecutionNanos = TimeUnit.MICROSECONDS.toNanos(
+            Long.getLong("gateway.inline.maxExecutionMicros", DEFAULT_MAX_INLINE_EXECUTION_MICROS));
 
     public RequestProcessingService(Parser parser) {
         this.parser = parser;
     }
 
     public void start() {
-        threadPool = new ThreadPool();
+        start((int) (Runtime.getRuntime().availableProcessors() * 1.5));
+    }
+
+    //numOfThreads is the size of the shared worker pool. 0 means no shared pool: every request is then handed
+    //to handleRequest together with its own pool (sharded runtime)
+    public void start(int numOfThreads) {
+        if (numOfThreads < 0) {
+            throw new IllegalArgumentException("Number of threads cannot be negative");
+        }
+        if (numOfThreads > 0) {
+            startSharedPool(numOfThreads);
+        }
         initializeFactory();
-        //create and run a Plugin Service to monitor and load JARs from this specific directory
-        PluginService pluginService = new PluginService("/home/itay/git/Java/GatewayServer/plugins", Command.class.getName());
+        startPluginService("/home/itay/git/Java/GatewayServer/plugins");
+    }
+
+    //create and run a Plugin Service to monitor and load JARs from this specific directory
+    void startPluginService(String pluginDirectory) {
+        pluginService = new PluginService(pluginDirectory, Command.class.getName());
         pluginService.start();
     }
 
+    private void startSharedPool(int numOfThreads) {
+        threadPool = createWorkerPool(numOfThreads, "requests");
+        if (Boolean.getBoolean("gateway.threadpool.elastic") && threadPool instanceof ThreadPool) {
+            //let the pool grow up to 4 times its initial size when workers are blocked (e.g. on the DB)
+            ThreadPool platformPool = (ThreadPool) threadPool;
+            int coreSize = platformPool.getCurrentNumberOfThreads();
+            elasticPoolController = new ElasticPoolController(platformPool, coreSize, coreSize * 4, 500, 50, TimeUnit.MILLISECONDS);
+            requestMetrics.addSource(elasticPoolController);
+            elasticPoolController.start();
+        }
+    }
+
+    //a pool for running requests: the queue is bounded so a burst can't buffer requests until we run out of memory.
+    //when it's full, the oldest low priority request is dropped in favor of the new one.
+    //the pool's statistics are published over JMX under the given name.
+    //with gateway.threadpool.virtual (Java 21+) requests run on virtual threads instead, at most
+    //gateway.threadpool.virtualMaxConcurrency at a time - for commands that mostly block (e.g. on the DB)
+    public PriorityExecutor createWorkerPool(int numOfThreads, String name) {
+        int queueCapacity = Integer.getInteger("gateway.threadpool.queueCapacity", DEFAULT_QUEUE_CAPACITY);
+        long agingMillis = Long.getLong("gateway.threadpool.agingMillis", DEFAULT_AGING_INTERVAL_MILLIS);
+        if (Boolean.getBoolean("gateway.threadpool.virtual")) {
+            if (VirtualThreads.isSupported()) {
+                int maxConcurrency = Integer.getInteger("gateway.threadpool.virtualMaxConcurrency", DEFAULT_VIRTUAL_MAX_CONCURRENCY);
+                VirtualThreadExecutor virtualExecutor = new VirtualThreadExecutor(maxConcurrency, queueCapacity);
+                virtualExecutor.setPriorityAging(agingMillis, TimeUnit.MILLISECONDS);
+                return virtualExecutor;
+            }
+            LOGGER.warn("virtual threads are not supported by this JVM - using a platform thread pool for {}", name);
+        }
+        ThreadPool workerPool = new ThreadPool(numOfThreads, ExecutionMode.SHARED_QUEUE, queueCapacity, RejectionPolicy.EVICT_LOWEST);
+        //a waiting request moves up one priority level every aging interval, so LOW requests still get served under load
+        workerPool.setPriorityAging(agingMillis, TimeUnit.MILLISECONDS);
+        workerPool.setWaitStrategy(waitStrategyOf(System.getProperty("gateway.threadpool.waitStrategy", "blocking")));
+        //a worker that finds the queue backed up takes up to this many requests at once (1: one at a time)
+        workerPool.setDequeueBatchSize(Integer.getInteger("gateway.threadpool.dequeueBatchSize", 1));
+        workerPool.registerMBean(name);
+        return workerPool;
+    }
+
+    //blocking (default), spin (spin, then yield, then park) or busyspin. spin and busyspin trade idle CPU for lower
+    //hand-off latency (e.g. for UDP telemetry); busyspin only makes sense with a dedicated core per worker
+    private static WaitStrategy waitStrategyOf(String name) {
+        switch (name) {
+            case "blocking":
+                return WaitStrategy.blocking();
+            case "spin":
+                return WaitStrategy.spinYieldPark(
+                        Integer.getInteger("gateway.threadpool.spinIterations", WaitStrategy.DEFAULT_SPIN_ITERATIONS),
+                        Integer.getInteger("gateway.threadpool.yieldIterations", WaitStrategy.DEFAULT_YIELD_ITERATIONS));
+            case "busyspin":
+                return WaitStrategy.busySpin();
+            default:
+                throw new IllegalArgumentException("Unknown wait strategy: " + name);
+        }
+    }
+
+    //a ring that hands the requests of one selector thread to numOfWorkers dedicated threads without allocating or
+    //locking on the selector thread (see RequestRing). size must be a power of two
+    public RequestRing createRequestRing(int size, int numOfWorkers, String name) {
+        int batchSize = Integer.getInteger("gateway.ring.batchSize", DEFAULT_RING_BATCH_SIZE);
+        return new RequestRing(size, numOfWorkers, batchSize, name,
+                (request, respondableChannel, priority, admissionTime) -> new RequestTask(request, respondableChannel, priority, admissionTime).run());
+    }
+
+    //collects the requests of one selector thread until it flushes them to the pool in one go (see RequestBatch).
+    //workerPool null: the shared pool
+    public RequestBatch createRequestBatch(PriorityExecutor workerPool, int maxSize) {
+        return new RequestBatch((workerPool == null) ? this::getSharedPool : () -> workerPool, maxSize);
+    }
+
     public void stop() {
+        if (pluginService != null) {
+            pluginService.stop();
+        }
+        if (elasticPoolController != null) {
+            elasticPoolController.stop();
+        }
+        if (threadPool == null) {
+            return;
+        }
         threadPool.shutdown();
         try {
-            threadPool.awaitTermination();
+            threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
         } catch (InterruptedException e) {
             throw new RuntimeException("Error shutting down the Thread Pool", e);
         }
@@ -51,6 +194,10 @@ public class RequestProcessingService {
         return commandFactory.create(key, data);
     }
 
+    public RequestMetrics getRequestMetrics() {
+        return requestMetrics;
+    }
+
 
     //private method to set up all pre-built factory creation methods
     private void initializeFactory() {
@@ -59,83 +206,587 @@ public class RequestProcessingService {
     }
 
     private void addRecipeToCommandFactory(String key, Function<JsonObject, Command> newCommandConstructor) {
-        System.out.println("***adding to factory: " + key); //TODO remove test prints
-        System.out.println("***adding to factory: " + newCommandConstructor);
-        commandFactory.add(key, newCommandConstructor);
+        addRecipeToCommandFactory(key, newCommandConstructor, false);
+    }
+
+    //returns the recipe the key had before, or null
+    private Function<JsonObject, ? extends Command> addRecipeToCommandFactory(String key, Function<JsonObject, ? extends Command> newCommandConstructor, boolean isNonBlocking) {
+        LOGGER.info("adding to factory: {} ({})", key, newCommandConstructor);
+        Function<JsonObject, ? extends Command> previousCommandConstructor = commandFactory.add(key, newCommandConstructor);
+        //a new version of a command starts with a clean record
+        inlineExecutionRecords.remove(key);
+        if (isNonBlocking) {
+            inlineCommandKeys.add(key);
+        } else {
+            inlineCommandKeys.remove(key);
+        }
+        return previousCommandConstructor;
+    }
+
+    //only if the key still maps to the given recipe (another plugin may have taken the key over since)
+    private void removeRecipeFromCommandFactory(String key, Function<JsonObject, Command> commandRecipe) {
+        if (commandFactory.remove(key, commandRecipe)) {
+            LOGGER.info("removed from factory: {}", key);
+            inlineCommandKeys.remove(key);
+            inlineExecutionRecords.remove(key);
+        }
     }
 
 
     public void handleRequest(ByteBuffer request, RespondableChannel respondableChannel) {
-        //create a Runnable that parses the request, creates a command using the Command Factory, and then executes it.
-        //then submit that Runnable to the thread pool
-        Runnable requestRunnable = new Runnable() {
-            @Override
-            public void run() {
-                Map.Entry<String, JsonObject> keyDataPair = parseRequest(request);
-                System.out.println("command type = " + keyDataPair.getKey() + " , data = " + keyDataPair.getValue().toString());
+        handleRequest(request, respondableChannel, Priority.MEDIUM);
+    }
+
+    public void handleRequest(ByteBuffer request, RespondableChannel respondableChannel, Priority priority) {
+        handleRequest(request, respondableChannel, priority, getSharedPool());
+    }
+
+    //run the request on the given pool instead of the shared one (e.g. the pool of the shard that owns the connection)
+    public void handleRequest(ByteBuffer request, RespondableChannel respondableChannel, Priority priority, PriorityExecutor workerPool) {
+        //admission control: if we are over the concurrency limit, shed the request with a fast "busy" response
+        if (!concurrencyLimiter.tryAcquire(priority)) {
+            requestMetrics.recordShedRequest();
+            respondBusy(respondableChannel);
+            return;
+        }
+
+        //submit a task that parses the request, creates a command using the Command Factory, and then executes it
+        try {
+            workerPool.execute(new RequestTask(request, respondableChannel, priority), priority);
+        } catch (RejectedExecutionException e) {
+            concurrencyLimiter.release(0);
+            requestMetrics.recordShedRequest();
+            respondBusy(respondableChannel);
+        }
+    }
+
+
+    //called from the ring's selector thread: the request goes to the ring's workers
+    public void handleRequest(ByteBuffer request, RespondableChannel respondableChannel, Priority priority, RequestRing requestRing) {
+        if (!concurrencyLimiter.tryAcquire(priority)) {
+            requestMetrics.recordShedRequest();
+            respondBusy(respondableChannel);
+            return;
+        }
+        if (!requestRing.publish(request, respondableChannel, priority)) {
+            concurrencyLimiter.release(0);
+            requestMetrics.recordShedRequest();
+            respondBusy(respondableChannel);
+        }
+    }
+
+
+    //called from the batch's selector thread: the request reaches the pool when the batch is flushed
+    public void handleRequest(ByteBuffer request, RespondableChannel respondableChannel, Priority priority, RequestBatch requestBatch) {
+        if (!concurrencyLimiter.tryAcquire(priority)) {
+            requestMetrics.recordShedRequest();
+            respondBusy(respondableChannel);
+            return;
+        }
+        requestBatch.add(new RequestTask(request, respondableChannel, priority), priority);
+    }
+
+
+    //called from a selector thread: requests for @NonBlocking commands are executed right here, as long as the loop
+    //iteration's budget lasts, which saves the hand-off to a worker and back. everything else goes to the pool
+    //(the shared pool if workerPool is null)
+    public void handleRequest(ByteBuffer request, RespondableChannel respondableChannel, Priority priority, PriorityExecutor workerPool, InlineExecutionBudget inlineBudget) {
+        handleRequest(request, respondableChannel, priority, workerPool, inlineBudget, null);
+    }
+
+    //the requests that aren't executed inline go to the batch (if not null) instead of straight to the pool
+    public void handleRequest(ByteBuffer request, RespondableChannel respondableChannel, Priority priority, PriorityExecutor workerPool, InlineExecutionBudget inlineBudget, RequestBatch requestBatch) {
+        if (workerPool == null) {
+            workerPool = getSharedPool();
+        }
+        if (inlineCommandKeys.isEmpty() || !inlineBudget.isAvailable()) {
+            if (requestBatch != null) {
+                handleRequest(request, respondableChannel, priority, requestBatch);
+            } else {
+                handleRequest(request, respondableChannel, priority, workerPool);
+            }
+            return;
+        }
+        if (!concurrencyLimiter.tryAcquire(priority)) {
+            requestMetrics.recordShedRequest();
+            respondBusy(respondableChannel);
+            return;
+        }
+
+        RequestTask requestTask = new RequestTask(request, respondableChannel, priority);
+        long inlineStartTime = System.nanoTime();
+        if (requestTask.parseEarly() && inlineCommandKeys.contains(requestTask.keyDataPair.getKey())) {
+            String commandKey = requestTask.keyDataPair.getKey();
+            try {
+                requestTask.run();
+            } catch (RuntimeException e) {
+                //a failing command must not take the selector thread down with it
+                LOGGER.error("Inline execution of {} failed", commandKey, e);
+            }
+            long inlineTime = System.nanoTime() - inlineStartTime;
+            inlineBudget.charge(inlineTime);
+            checkInlineExecutionTime(commandKey, inlineTime);
+            return;
+        }
+
+        //not an inline command (or not parsable): the worker picks up the parsed request where we stopped
+        inlineBudget.charge(System.nanoTime() - inlineStartTime);
+        if (requestBatch != null) {
+            requestBatch.add(requestTask, priority);
+            return;
+        }
+        try {
+            workerPool.execute(requestTask, priority);
+        } catch (RejectedExecutionException e) {
+            concurrencyLimiter.release(0);
+            requestMetrics.recordShedRequest();
+            respondBusy(respondableChannel);
+        }
+    }
+
+
+    //watchdog for inline commands: a warmed up command that overruns its time several times in a row is demoted to
+    //the thread pool for good (until it's loaded again). while a command is cold, only gross overruns count - ones
+    //the interpreter can't explain, like a command that blocks after all. a single one may still be class loading
+    private void checkInlineExecutionTime(String commandKey, long inlineTime) {
+        InlineExecutionRecord record = inlineExecutionRecords.computeIfAbsent(commandKey, key -> new InlineExecutionRecord());
+        boolean isWarmingUp = record.executions.incrementAndGet() <= INLINE_WARM_UP_EXECUTIONS;
+        long maxExecutionNanos = isWarmingUp ? maxInlineExecutionNanos * INLINE_GROSS_OVERRUN_FACTOR : maxInlineExecutionNanos;
+        if (inlineTime <= maxExecutionNanos) {
+            record.consecutiveOverruns.set(0);
+            return;
+        }
+        int overruns = record.consecutiveOverruns.incrementAndGet();
+        if (overruns >= INLINE_OVERRUNS_TO_DEMOTE && inlineCommandKeys.remove(commandKey)) {
+            LOGGER.warn("command {} overran its inline execution time {} times in a row - moving it to the thread pool", commandKey, overruns);
+        }
+    }
+
+
+    private static class InlineExecutionRecord {
+        private final AtomicInteger executions = new AtomicInteger(0);
+        private final AtomicInteger consecutiveOverruns = new AtomicInteger(0);
+    }
+
+
+    private PriorityExecutor getSharedPool() {
+        if (threadPool == null) {
+            throw new IllegalStateException("No shared thread pool: the service was started without one");
+        }
+        return threadPool;
+    }
+
+
+    private void respondBusy(RespondableChannel respondableChannel) {
+        JsonObject responseJson = new JsonObject();
+        responseJson.addProperty("Status", "503");
+        responseJson.addProperty("Info", "Server is busy, try again later");
+        respondableChannel.respond(CommandParser.JsonToByteBuffer(responseJson));
+    }
+
+
+    //a single request on its way through the pipeline. it also wraps the client's channel, so it can time
+    //the respond stage of the command without allocating anything else per request
+    private class RequestTask implements Runnable, RespondableChannel, Evictable {
+        private final ByteBuffer request;
+        private final RespondableChannel respondableChannel;
+        private final Priority priority;
+        private final long admissionTime;
+        private String commandKey = null;
+        //set when the request was already parsed on the selector thread
+        private Map.Entry<String, JsonObject> keyDataPair = null;
+        private long parseTime = 0;
+        private boolean isHandedOff = false;    //the command runs on its plugin's bulkhead, which finishes the request
+
+        private RequestTask(ByteBuffer request, RespondableChannel respondableChannel, Priority priority) {
+            this(request, respondableChannel, priority, System.nanoTime());
+        }
+
+        private RequestTask(ByteBuffer request, RespondableChannel respondableChannel, Priority priority, long admissionTime) {
+            this.request = request;
+            this.respondableChannel = respondableChannel;
+            this.priority = priority;
+            this.admissionTime = admissionTime;
+        }
+
+        //parse before run(), to find out which command this is. returns false if the request can't be parsed
+        private boolean parseEarly() {
+            long parseStartTime = System.nanoTime();
+            try {
+                keyDataPair = parseRequest(request.duplicate());
+            } catch (RuntimeException e) {
+                //leave it to run(), which fails the same way it always did
+                return false;
+            }
+            parseTime = System.nanoTime() - parseStartTime;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            Protocol protocol = respondableChannel.getProtocol();
+            int requestBytes = request.remaining();
+            try {
+                long runStartTime = System.nanoTime();
+                long queueTime = runStartTime - admissionTime - parseTime;
+                if (keyDataPair == null) {
+                    keyDataPair = parseRequest(request);
+                    parseTime = System.nanoTime() - runStartTime;
+                }
+                LOGGER.debug("command type = {} , data = {}", keyDataPair.getKey(), keyDataPair.getValue());
+                long factoryStartTime = System.nanoTime();
                 Command command = createCommand(keyDataPair.getKey(), keyDataPair.getValue());
+                long factoryTime = System.nanoTime() - factoryStartTime;
+
+                //only label the metrics after the factory accepted the key, so invalid keys don't create new series
+                commandKey = keyDataPair.getKey();
+                requestMetrics.record(commandKey, protocol, Stage.QUEUE, queueTime);
+                requestMetrics.record(commandKey, protocol, Stage.PARSE, parseTime);
+                requestMetrics.record(commandKey, protocol, Stage.FACTORY, factoryTime);
+
+                if (command instanceof GenerationCommand && ((GenerationCommand) command).bulkhead.hasPool()) {
+                    //a plugin with a bulkhead: its own threads execute it, and finish the request
+                    isHandedOff = true;
+                    handOff((GenerationCommand) command, requestBytes);
+                    return;
+                }
+                executeCommand(command, requestBytes);
+            } finally {
+                if (!isHandedOff) {
+                    //the latency from admission to completion (including time in queue) drives the limit
+                    concurrencyLimiter.release(System.nanoTime() - admissionTime);
+                }
+            }
+        }
+
+        private void executeCommand(Command command, int requestBytes) {
+            Protocol protocol = respondableChannel.getProtocol();
+            long executeStartTime = System.nanoTime();
+            CommandExecuteEvent executeEvent = new CommandExecuteEvent();
+            executeEvent.begin();
+            command.execute(this);
+            requestMetrics.record(commandKey, protocol, Stage.EXECUTE, System.nanoTime() - executeStartTime);
+            if (executeEvent.shouldCommit()) {
+                executeEvent.commandKey = commandKey;
+                executeEvent.priority = priority.name();
+                executeEvent.protocol = protocol.name();
+                executeEvent.requestBytes = requestBytes;
+                executeEvent.commit();
+            }
+        }
+
+        //if the plugin's queue is full, the request is answered "busy" here
+        private void handOff(GenerationCommand command, int requestBytes) {
+            try {
+                command.bulkhead.execute(() -> {
+                    try {
+                        executeCommand(command, requestBytes);
+                    } finally {
+                        concurrencyLimiter.release(System.nanoTime() - admissionTime);
+                    }
+                }, priority);
+            } catch (RejectedExecutionException e) {
+                command.discard();
+                concurrencyLimiter.release(0);
+                requestMetrics.recordShedRequest();
+                respondBusy(respondableChannel);
+            }
+        }
+
+        @Override
+        public void respond(ByteBuffer data) {
+            RespondEvent respondEvent = new RespondEvent();
+            respondEvent.begin();
+            int responseBytes = data.remaining();
+            long respondStartTime = System.nanoTime();
+            respondableChannel.respond(data);
+            if (commandKey != null) {
+                requestMetrics.record(commandKey, getProtocol(), Stage.RESPOND, System.nanoTime() - respondStartTime);
+            }
+            if (respondEvent.shouldCommit()) {
+                respondEvent.commandKey = commandKey;
+                respondEvent.protocol = getProtocol().name();
+                respondEvent.bytes = responseBytes;
+                respondEvent.commit();
+            }
+        }
+
+        @Override
+        public Protocol getProtocol() {
+            return respondableChannel.getProtocol();
+        }
+
+        //the queue was full and a more important request took our place: the task never runs, so answer here
+        @Override
+        public void onEvicted() {
+            concurrencyLimiter.release(0);
+            requestMetrics.recordShedRequest();
+            respondBusy(respondableChannel);
+        }
+    }
+
+
+    //a command of a plugin generation: it keeps the generation (and its class loader) open until it has executed.
+    //its CPU time is accounted to the plugin's bulkhead
+    private static class GenerationCommand implements Command {
+        private final Command command;
+        private final PluginGeneration generation;
+        private final PluginBulkhead bulkhead;
+
+        private GenerationCommand(Command command, PluginGeneration generation, PluginBulkhead bulkhead) {
+            this.command = command;
+            this.generation = generation;
+            this.bulkhead = bulkhead;
+        }
+
+        @Override
+        public JsonObject getData() {
+            return command.getData();
+        }
+
+        @Override
+        public void execute(RespondableChannel respondableChannel) {
+            long cpuStartTime = bulkhead.currentThreadCpuTime();
+            try {
                 command.execute(respondableChannel);
+            } finally {
+                bulkhead.recordExecution(cpuStartTime);
+                generation.release();
             }
-        };
-        threadPool.submit(requestRunnable);
+        }
+
+        //the command won't be executed (e.g. its bulkhead is full)
+        private void discard() {
+            generation.release();
+        }
     }
 
 
-    private class PluginService {
+    //every plugin JAR is loaded as a PluginGeneration. when a JAR is modified, its new generation is loaded and its
+    //recipes replace the old ones in the factory (so new requests go to the new version right away), and then the
+    //old generation is retired: it's closed once the commands that are still running on it are done
+    private class PluginService implements PrometheusSource {
         private final String pluginDirectory;
         private final DynamicJarLoader dynamicJarLoader;
+        private final PluginIndex pluginIndex;
+        private final Map<String, LoadedJar> loadedJars = new ConcurrentHashMap<>();    //by JAR file name
+        //by JAR file name. a bulkhead outlives the generations of its JAR
+        private final Map<String, PluginBulkhead> bulkheads = new ConcurrentHashMap<>();
+        private DirMonitor dirMonitor = null;
+        private final CommandWarmUp commandWarmUp;  //null if warm-up is disabled
 
         public PluginService(String pluginDirectory, String interfaceName) {
             this.pluginDirectory = pluginDirectory;
             dynamicJarLoader = new DynamicJarLoader(pluginDirectory, interfaceName);
+            pluginIndex = new PluginIndex(pluginDirectory);
+            //the time budget of warming up one deployed command (see WarmUp). 0 disables the warm-up
+            long warmUpMillis = Long.getLong("gateway.plugins.warmUpMillis", DEFAULT_PLUGIN_WARM_UP_MILLIS);
+            commandWarmUp = (warmUpMillis > 0) ? new CommandWarmUp(parser, warmUpMillis, TimeUnit.MILLISECONDS) : null;
+            requestMetrics.addSource(this);
         }
 
         public void start() {
+            //create the directory watcher. a JAR is loaded once it was left alone for the quiet period. it watches
+            //from before the initial load, so a JAR copied in meanwhile is loaded again once the watcher runs - only
+            //if its content is not the one the initial load found
+            dirMonitor = new DirMonitor(pluginDirectory, this::handleJARDetected,
+                    Long.getLong("gateway.plugins.quietMillis", DirMonitor.DEFAULT_QUIET_PERIOD_MILLIS),
+                    Integer.getInteger("gateway.plugins.loaders", DirMonitor.DEFAULT_NUM_OF_LOADERS));
+            dirMonitor.watch();
+
             loadInitialJARsFromDir();
+            //the content each JAR was loaded with: the events of the initial load, and of JARs that were only
+            //touched meanwhile, don't reload anything
+            for (String jarName : loadedJars.keySet()) {
+                String contentHash = pluginIndex.getContentHash(jarName);
+                if (contentHash != null) {
+                    dirMonitor.markHandled(jarName, contentHash);
+                }
+            }
 
-            //create and run the directory watcher thread
-            DirMonitor dirMonitor = new DirMonitor(pluginDirectory, this::handleJARDetected);
             Thread dirMonitorThread = new Thread(dirMonitor);
             dirMonitorThread.setDaemon(true);
             dirMonitorThread.start();
         }
 
+        public void stop() {
+            if (dirMonitor != null) {
+                dirMonitor.stop();
+            }
+            for (PluginBulkhead bulkhead : bulkheads.values()) {
+                bulkhead.shutdown();
+            }
+        }
+
+
+        //gateway.plugins.bulkhead.threads gives every plugin JAR a pool of that many threads of its own (default 0:
+        //plugins run on the shared workers), with a queue of gateway.plugins.bulkhead.queueCapacity requests.
+        //both can be set for one JAR too, e.g. gateway.plugins.bulkhead.products.jar.threads
+        private PluginBulkhead bulkheadOf(String jarName) {
+            return bulkheads.computeIfAbsent(jarName, name -> {
+                int numOfThreads = Integer.getInteger("gateway.plugins.bulkhead." + name + ".threads",
+                        Integer.getInteger("gateway.plugins.bulkhead.threads", 0));
+                int queueCapacity = Integer.getInteger("gateway.plugins.bulkhead." + name + ".queueCapacity",
+                        Integer.getInteger("gateway.plugins.bulkhead.queueCapacity", DEFAULT_PLUGIN_BULKHEAD_QUEUE_CAPACITY));
+                return new PluginBulkhead(name, numOfThreads, queueCapacity);
+            });
+        }
+
+
+        @Override
+        public void appendPrometheusText(StringBuilder text) {
+            text.append("# HELP gateway_plugin_cpu_seconds_total CPU time spent executing the commands of each plugin JAR.\n");
+            text.append("# TYPE gateway_plugin_cpu_seconds_total counter\n");
+            for (PluginBulkhead bulkhead : bulkheads.values()) {
+                appendPluginSample(text, "gateway_plugin_cpu_seconds_total", bulkhead).append(bulkhead.getCpuNanos() / 1e9).append('\n');
+            }
+            text.append("# HELP gateway_plugin_executions_total Commands of each plugin JAR executed.\n");
+            text.append("# TYPE gateway_plugin_executions_total counter\n");
+            for (PluginBulkhead bulkhead : bulkheads.values()) {
+                appendPluginSample(text, "gateway_plugin_executions_total", bulkhead).append(bulkhead.getExecutions()).append('\n');
+            }
+            text.append("# HELP gateway_plugin_rejected_total Requests rejected because the plugin's bulkhead queue was full.\n");
+            text.append("# TYPE gateway_plugin_rejected_total counter\n");
+            for (PluginBulkhead bulkhead : bulkheads.values()) {
+                appendPluginSample(text, "gateway_plugin_rejected_total", bulkhead).append(bulkhead.getRejections()).append('\n');
+            }
+            text.append("# HELP gateway_plugin_queued_requests Requests waiting in the plugin's bulkhead queue.\n");
+            text.append("# TYPE gateway_plugin_queued_requests gauge\n");
+            for (PluginBulkhead bulkhead : bulkheads.values()) {
+                appendPluginSample(text, "gateway_plugin_queued_requests", bulkhead).append(bulkhead.getQueueSize()).append('\n');
+            }
+        }
+
+        private StringBuilder appendPluginSample(StringBuilder text, String metricName, PluginBulkhead bulkhead) {
+            return text.append(metricName).append("{plugin=\"").append(bulkhead.getJarName()).append("\"} ");
+        }
+
 
         private void handleJARDetected(Path pathToJAR) {
+            if (PluginIndex.isIndexFile(pathToJAR)) {
+                //our own index, written next to the JARs
+                return;
+            }
             if (!pathToJAR.toString().endsWith(".jar")) {
                 throw new RuntimeException("Invalid file");
             }
 
-            String fullPath = pluginDirectory + "/" + pathToJAR.toString();
-            List<Class<?>> newCommandsList = loadClassesFromJAR(fullPath);
-            
+            File jarFile = new File(pluginDirectory, pathToJAR.getFileName().toString());
+            PluginGeneration generation = newGeneration(jarFile);
+            List<PluginClassInfo> addedCommands;
+            try {
+                addedCommands = addCommands(generation, loadClassesFromJAR(generation), true);
+            } catch (RuntimeException | LinkageError e) {
+                //the current generation (if any) stays - addGeneration took back whatever it published
+                generation.retire();
+                throw e;
+            }
+            pluginIndex.update(jarFile, addedCommands);
+            pluginIndex.save();
+        }
+
+
+        private PluginGeneration newGeneration(File jarFile) {
+            LoadedJar currentJar = loadedJars.get(jarFile.getName());
+            int version = (currentJar == null) ? 1 : currentJar.generation.getVersion() + 1;
+            return new PluginGeneration(dynamicJarLoader, jarFile.getPath(), version);
+        }
+
+
+        //registers the generation's commands, and returns what the index needs to know about them.
+        //isWarmUp: the server is already running, so the commands that have samples are warmed up before they're added
+        private List<PluginClassInfo> addCommands(PluginGeneration generation, List<Class<?>> newCommandsList, boolean isWarmUp) {
+            List<PluginClassInfo> addedCommands = new ArrayList<>();
             for (Class<?> newCommandClass : newCommandsList) {
-                //extract the constructor from the new Command class
-                Constructor<?> newCommandConstructor = getCommandConstructor(newCommandClass);
+                addedCommands.add(new PluginClassInfo(newCommandClass.getName(), newCommandClass.getSimpleName(),
+                        newCommandClass.isAnnotationPresent(NonBlocking.class)));
+            }
+            addGeneration(generation, addedCommands, newCommandsList, isWarmUp);
+            return addedCommands;
+        }
 
-                //create a Function<JsonObject, Command> from the constructor
-                Function<JsonObject, Command> constructorFunction = (dataArgument) -> {
-                    try {
-                        //instantiate the command using the constructor
-                        return (Command)newCommandConstructor.newInstance(dataArgument);
-                    } catch (Exception e) {
-                        System.out.println(e.getMessage());
-                        throw new RuntimeException("Failed to create command instance", e);
+
+        //adds the commands of an unchanged JAR straight from the index: the JAR is opened and the class is loaded
+        //only when its command is first requested
+        private void addIndexedCommands(File jarFile, List<PluginClassInfo> indexedCommands) {
+            addGeneration(newGeneration(jarFile), indexedCommands, null, false);
+        }
+
+
+        //loadedClasses: the classes of the commands, in the same order, or null to load them on first use.
+        //all the commands are warmed up before any of them is added, so the new version goes live as a whole - not
+        //one command at a time, with the others still served by the old version for the length of the warm-ups
+        private void addGeneration(PluginGeneration generation, List<PluginClassInfo> commands, List<Class<?>> loadedClasses, boolean isWarmUp) {
+            String jarName = new File(generation.getJarPath()).getName();
+            PluginBulkhead bulkhead = bulkheadOf(jarName);
+            Map<String, GenerationRecipe> recipes = new HashMap<>();
+            for (int i = 0; i < commands.size(); ++i) {
+                PluginClassInfo commandInfo = commands.get(i);
+                Constructor<?> constructor = (loadedClasses == null) ? null : getCommandConstructor(loadedClasses.get(i));
+                GenerationRecipe recipe = new GenerationRecipe(generation, bulkhead, commandInfo.getClassName(), commandInfo.getCommandKey(), constructor);
+                if (isWarmUp && loadedClasses != null) {
+                    warmUp(recipe, loadedClasses.get(i));
+                }
+                recipes.put(commandInfo.getCommandKey(), recipe);
+            }
+
+            //the recipes the keys had before, to put back if publishing fails half way
+            Map<String, Function<JsonObject, ? extends Command>> previousRecipes = new HashMap<>();
+            Set<String> previousInlineKeys = new HashSet<>();
+            try {
+                for (PluginClassInfo commandInfo : commands) {
+                    String commandKey = commandInfo.getCommandKey();
+                    if (inlineCommandKeys.contains(commandKey)) {
+                        previousInlineKeys.add(commandKey);
+                    }
+                    //add the new Command recipe (constructor) to the factory
+                    previousRecipes.put(commandKey, RequestProcessingService.this.addRecipeToCommandFactory(commandKey, recipes.get(commandKey), commandInfo.isNonBlocking()));
+                }
+            } catch (RuntimeException e) {
+                for (Map.Entry<String, Function<JsonObject, ? extends Command>> previousRecipe : previousRecipes.entrySet()) {
+                    String commandKey = previousRecipe.getKey();
+                    if (previousRecipe.getValue() != null) {
+                        RequestProcessingService.this.addRecipeToCommandFactory(commandKey, previousRecipe.getValue(), previousInlineKeys.contains(commandKey));
+                    } else {
+                        RequestProcessingService.this.removeRecipeFromCommandFactory(commandKey, recipes.get(commandKey));
                     }
-                };
+                }
+                throw e;
+            }
 
-                //add the new Command recipe (constructor) to the factory
-                String newCommandName = newCommandClass.getSimpleName();
-                RequestProcessingService.this.addRecipeToCommandFactory(newCommandName, constructorFunction);
+            LoadedJar replacedJar = loadedJars.put(jarName, new LoadedJar(generation, recipes));
+            if (replacedJar != null) {
+                //commands the new version doesn't have anymore
+                for (Map.Entry<String, GenerationRecipe> oldRecipe : replacedJar.recipes.entrySet()) {
+                    if (!recipes.containsKey(oldRecipe.getKey())) {
+                        RequestProcessingService.this.removeRecipeFromCommandFactory(oldRecipe.getKey(), oldRecipe.getValue());
+                    }
+                }
+                replacedJar.generation.retire();
+                LOGGER.info("{} replaced by version {}", jarName, generation.getVersion());
             }
         }
 
 
-        private List<Class<?>> loadClassesFromJAR(String fullPath) {
+        //best effort: a command whose warm-up fails is still added (cold), as it was before warm-ups
+        private void warmUp(GenerationRecipe recipe, Class<?> commandClass) {
+            WarmUp warmUp = commandClass.getAnnotation(WarmUp.class);
+            if (commandWarmUp == null || warmUp == null) {
+                return;
+            }
+            try {
+                commandWarmUp.warmUp(recipe.commandKey, recipe, warmUp.value());
+            } catch (RuntimeException e) {
+                LOGGER.warn("Warm-up of {} failed: {}", recipe, e);
+            }
+        }
+
+
+        private List<Class<?>> loadClassesFromJAR(PluginGeneration generation) {
             List<Class<?>> newCommandsList;
             //load relevant classes from the JAR into a list
             try {
-                newCommandsList = dynamicJarLoader.loadClassesFromJAR(fullPath);
+                newCommandsList = dynamicJarLoader.loadClassesFromJAR(generation.getJarPath(), generation.getClassLoader());
             } catch (IOException | ClassNotFoundException e) {
                 throw new RuntimeException("Couldn't load classes from JAR file", e);
             }
@@ -160,10 +811,129 @@ public class RequestProcessingService {
                 throw new RuntimeException("JAR plugin directory does not exist");
             }
 
+            List<File> jarFiles = new ArrayList<>();
             for (File file : JarDirectory.listFiles()) {
                 if (file.getName().endsWith(".jar")) {
-                    handleJARDetected(file.toPath());
+                    jarFiles.add(file);
+                }
+            }
+
+            //only the JARs that changed since the index was written are scanned
+            Map<File, List<PluginClassInfo>> indexedJars = new HashMap<>();
+            List<File> changedJars = new ArrayList<>();
+            for (File jarFile : jarFiles) {
+                List<PluginClassInfo> indexedCommands = pluginIndex.lookup(jarFile);
+                if (indexedCommands != null) {
+                    indexedJars.put(jarFile, indexedCommands);
+                } else {
+                    changedJars.add(jarFile);
+                }
+            }
+            LOGGER.info("{} plugin JARs are indexed, {} need a scan", indexedJars.size(), changedJars.size());
+
+            //scan the JARs in parallel, but add their commands in directory order, so a later JAR still overrides
+            //an earlier one the same way it did when they were loaded one by one
+            ThreadPool scanPool = changedJars.isEmpty() ? null
+                    : new ThreadPool(Math.min(changedJars.size(), Runtime.getRuntime().availableProcessors()));
+            try {
+                Map<File, PluginGeneration> generations = new HashMap<>();
+                Map<File, Future<List<Class<?>>>> scans = new HashMap<>();
+                for (File jarFile : changedJars) {
+                    PluginGeneration generation = newGeneration(jarFile);
+                    generations.put(jarFile, generation);
+                    scans.put(jarFile, scanPool.submit(() -> loadClassesFromJAR(generation), Priority.MEDIUM));
+                }
+                for (File jarFile : jarFiles) {
+                    if (indexedJars.containsKey(jarFile)) {
+                        addIndexedCommands(jarFile, indexedJars.get(jarFile));
+                    } else {
+                        pluginIndex.update(jarFile, addCommands(generations.get(jarFile), scans.get(jarFile).get(), false));
+                    }
                 }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException("Couldn't load classes from JAR file", e);
+            } finally {
+                if (scanPool != null) {
+                    scanPool.shutdown();
+                }
+            }
+            pluginIndex.save();
+        }
+
+
+        private class LoadedJar {
+            private final PluginGeneration generation;
+            private final Map<String, GenerationRecipe> recipes;    //by command key
+
+            private LoadedJar(PluginGeneration generation, Map<String, GenerationRecipe> recipes) {
+                this.generation = generation;
+                this.recipes = recipes;
+            }
+        }
+
+
+        //creates the commands of one class of a generation. every command holds a reference to its generation until
+        //it has executed. the class is loaded on the first request if it wasn't loaded by a scan
+        private class GenerationRecipe implements Function<JsonObject, Command> {
+            private final PluginGeneration generation;
+            private final PluginBulkhead bulkhead;
+            private final String className;
+            private final String commandKey;
+            private volatile Constructor<?> commandConstructor;
+
+            private GenerationRecipe(PluginGeneration generation, PluginBulkhead bulkhead, String className, String commandKey, Constructor<?> commandConstructor) {
+                this.generation = generation;
+                this.bulkhead = bulkhead;
+                this.className = className;
+                this.commandKey = commandKey;
+                this.commandConstructor = commandConstructor;
+            }
+
+            @Override
+            public Command apply(JsonObject dataArgument) {
+                if (!generation.tryAcquire()) {
+                    //the JAR was replaced and this generation drained after the factory handed us out: by now the
+                    //factory has the new version's recipe
+                    return RequestProcessingService.this.createCommand(commandKey, dataArgument);
+                }
+                try {
+                    return new GenerationCommand(newCommand(getConstructor(), dataArgument), generation, bulkhead);
+                } catch (RuntimeException e) {
+                    generation.release();
+                    throw e;
+                }
+            }
+
+            private Constructor<?> getConstructor() {
+                Constructor<?> constructor = commandConstructor;
+                if (constructor == null) {
+                    synchronized (this) {
+                        if (commandConstructor == null) {
+                            try {
+                                commandConstructor = getCommandConstructor(Class.forName(className, true, generation.getClassLoader()));
+                            } catch (ClassNotFoundException e) {
+                                throw new RuntimeException("Indexed command class " + className + " is missing from its JAR", e);
+                            }
+                        }
+                        constructor = commandConstructor;
+                    }
+                }
+                return constructor;
+            }
+
+            private Command newCommand(Constructor<?> constructor, JsonObject dataArgument) {
+                try {
+                    //instantiate the command using the constructor
+                    return (Command) constructor.newInstance(dataArgument);
+                } catch (Exception e) {
+                    LOGGER.error("Failed to create command instance of {}", className, e);
+                    throw new RuntimeException("Failed to create command instance", e);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return className + " (version " + generation.getVersion() + ")";
             }
         }
 
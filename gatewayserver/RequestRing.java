@@ -0,0 +1,106 @@
+package gatewayserver;
+
+import connectionservice.RespondableChannel;
+import logger.Logger;
+import threadpool.Priority;
+import waitingqueue.RingBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+//hands the requests of a single selector thread to a few dedicated worker threads through a preallocated ring of
+//request slots (see RingBuffer): publishing a request fills a slot in place, so the selector thread allocates
+//nothing and takes no lock per request, and the workers take the published requests in batches.
+//the ring is FIFO - the priority is carried along in the slot, but doesn't reorder requests.
+//created by RequestProcessingService.createRequestRing
+public class RequestRing {
+    private static final Logger LOGGER = Logger.getLogger(RequestRing.class);
+    private final RingBuffer<RequestSlot> ringBuffer;
+    private final RequestHandler requestHandler;
+    private final int batchSize;
+    private final Thread[] workerThreads;
+
+    RequestRing(int size, int numOfWorkers, int batchSize, String name, RequestHandler requestHandler) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.ringBuffer = new RingBuffer<>(size, RequestSlot::new, numOfWorkers);
+        this.requestHandler = requestHandler;
+        this.batchSize = batchSize;
+        workerThreads = new Thread[numOfWorkers];
+        for (int i = 0; i < numOfWorkers; ++i) {
+            int workerIndex = i;
+            workerThreads[i] = new Thread(() -> work(workerIndex), name + "-ring-worker-" + i);
+            workerThreads[i].setDaemon(true);
+            workerThreads[i].start();
+        }
+    }
+
+
+    //the selector (producer) thread only. returns false if the ring is full
+    public boolean publish(ByteBuffer request, RespondableChannel respondableChannel, Priority priority) {
+        long sequence = ringBuffer.tryClaim();
+        if (sequence < 0) {
+            return false;
+        }
+        RequestSlot slot = ringBuffer.get(sequence);
+        slot.request = request;
+        slot.respondableChannel = respondableChannel;
+        slot.priority = priority;
+        slot.admissionTime = System.nanoTime();
+        ringBuffer.publish(sequence);
+        return true;
+    }
+
+
+    //the requests that were already published are still handled
+    public void stop() {
+        ringBuffer.close();
+        for (Thread workerThread : workerThreads) {
+            try {
+                workerThread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Error stopping the request ring", e);
+            }
+        }
+    }
+
+    public int getBacklog() {
+        return ringBuffer.getBacklog();
+    }
+
+
+    private void work(int workerIndex) {
+        Consumer<RequestSlot> slotHandler = this::handleSlot;   //created once, not per batch
+        while (ringBuffer.consume(workerIndex, batchSize, slotHandler) >= 0) {
+            //keep consuming until the ring is closed and empty
+        }
+    }
+
+    private void handleSlot(RequestSlot slot) {
+        ByteBuffer request = slot.request;
+        RespondableChannel respondableChannel = slot.respondableChannel;
+        //don't keep the request alive until the slot comes around again
+        slot.request = null;
+        slot.respondableChannel = null;
+        try {
+            requestHandler.handle(request, respondableChannel, slot.priority, slot.admissionTime);
+        } catch (RuntimeException e) {
+            //a failing request must not take the worker down with it
+            LOGGER.error("Request from the ring failed", e);
+        }
+    }
+
+
+    interface RequestHandler {
+        void handle(ByteBuffer request, RespondableChannel respondableChannel, Priority priority, long admissionTime);
+    }
+
+
+    private static class RequestSlot {
+        private ByteBuffer request;
+        private RespondableChannel respondableChannel;
+        private Priority priority;
+        private long admissionTime;
+    }
+}
@@ -0,0 +1,29 @@
+package jfrevents;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("gateway.CommandExecute")
+@Label("Command Execute")
+@Description("Execution of a Command, including its response to the client")
+@Category({"Gateway", "Request Processing"})
+@StackTrace(false)
+public class CommandExecuteEvent extends Event {
+    @Label("Command Key")
+    public String commandKey;
+
+    @Label("Priority")
+    public String priority;
+
+    @Label("Protocol")
+    public String protocol;
+
+    @Label("Request Bytes")
+    @DataAmount
+    public long requestBytes;
+}
@@ -0,0 +1,18 @@
+package jfrevents;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("gateway.ConnectionAccept")
+@Label("Connection Accept")
+@Description("A new TCP client connection was accepted by the ConnectionService")
+@Category({"Gateway", "Connection"})
+@StackTrace(false)
+public class ConnectionAcceptEvent extends Event {
+    @Label("Remote Address")
+    public String remoteAddress;
+}
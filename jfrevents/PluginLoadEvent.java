@@ -0,0 +1,26 @@
+package jfrevents;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("gateway.PluginLoad")
+@Label("Plugin Load")
+@Description("Classes were loaded from a plugin JAR by the DynamicJarLoader")
+@Category({"Gateway", "Plugins"})
+@StackTrace(false)
+public class PluginLoadEvent extends Event {
+    @Label("JAR Path")
+    public String jarPath;
+
+    @Label("JAR Size")
+    @DataAmount
+    public long jarBytes;
+
+    @Label("Loaded Classes")
+    public int loadedClasses;
+}
@@ -0,0 +1,23 @@
+package jfrevents;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("gateway.QueueDequeue")
+@Label("Queue Dequeue")
+@Description("An element was removed from a WaitablePQueue. the duration includes the time spent waiting for an element")
+@Category({"Gateway", "Queue"})
+@StackTrace(false)
+public class QueueDequeueEvent extends Event {
+    @Label("Priority Level")
+    @Description("Priority level (lane) of the element, 0 is the lowest")
+    public int level;
+
+    @Label("Queue Size")
+    @Description("Number of elements in the queue after the removal")
+    public int queueSize;
+}
@@ -0,0 +1,23 @@
+package jfrevents;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("gateway.QueueEnqueue")
+@Label("Queue Enqueue")
+@Description("An element was inserted into a WaitablePQueue")
+@Category({"Gateway", "Queue"})
+@StackTrace(false)
+public class QueueEnqueueEvent extends Event {
+    @Label("Priority Level")
+    @Description("Priority level (lane) of the element, 0 is the lowest")
+    public int level;
+
+    @Label("Queue Size")
+    @Description("Number of elements in the queue after the insertion")
+    public int queueSize;
+}
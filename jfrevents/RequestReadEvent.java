@@ -0,0 +1,23 @@
+package jfrevents;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("gateway.RequestRead")
+@Label("Request Read")
+@Description("A request was read from a TCP or UDP channel by the ConnectionService")
+@Category({"Gateway", "Connection"})
+@StackTrace(false)
+public class RequestReadEvent extends Event {
+    @Label("Protocol")
+    public String protocol;
+
+    @Label("Bytes Read")
+    @DataAmount
+    public long bytes;
+}
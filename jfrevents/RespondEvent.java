@@ -0,0 +1,26 @@
+package jfrevents;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("gateway.Respond")
+@Label("Respond")
+@Description("A response was written to the client through a RespondableChannel")
+@Category({"Gateway", "Request Processing"})
+@StackTrace(false)
+public class RespondEvent extends Event {
+    @Label("Command Key")
+    public String commandKey;
+
+    @Label("Protocol")
+    public String protocol;
+
+    @Label("Response Bytes")
+    @DataAmount
+    public long bytes;
+}
@@ -0,0 +1,214 @@
+package logger;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//multi-producer, single-consumer ring buffer of preallocated log events.
+//producers claim a slot with a CAS, fill it and publish it with a volatile write of the slot's sequence.
+//a single background thread formats and prints published events in order. when the buffer is full, events are dropped
+//(and counted) instead of blocking the caller.
+//an idle writer parks, and the producer that publishes the next event unparks it (only then, so a busy writer costs
+//the producers a single volatile read). on JVM shutdown a hook waits for the writer to print what was published
+class AsyncLogWriter {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final int SPIN_ITERATIONS = 100;
+    //a safety net only: a publish always unparks an idle writer
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SHUTDOWN_FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final LogEvent[] ringBuffer;
+    private final int indexMask;
+    private final AtomicLong nextSequenceToClaim = new AtomicLong(0);
+    private volatile long nextSequenceToConsume = 0;
+    private final LongAdder droppedEvents = new LongAdder();
+    private final PrintStream output;
+    private final Thread writerThread;
+    private volatile boolean isWriterParked = false;
+
+
+    private static class InstanceHolder {
+        private static final AsyncLogWriter INSTANCE = new AsyncLogWriter(Integer.getInteger("gateway.log.bufferSize", DEFAULT_BUFFER_SIZE), System.out);
+    }
+
+    static AsyncLogWriter getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+
+    private AsyncLogWriter(int bufferSize, PrintStream output) {
+        //round the size up to a power of two so the slot index is a simple mask
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        this.ringBuffer = new LogEvent[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            ringBuffer[i] = new LogEvent();
+        }
+        this.indexMask = capacity - 1;
+        this.output = output;
+
+        writerThread = new Thread(this::drain, "async-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flushOnShutdown, "async-log-flush"));
+        } catch (IllegalStateException e) {
+            //the first event is logged while the JVM is already shutting down
+        }
+    }
+
+
+    void publish(LogLevel level, String loggerName, String format, int argCount, Object arg1, Object arg2, Object arg3, Throwable throwable) {
+        //a mutable argument may change (or be in the middle of a change) by the time the writer gets to it, so it's
+        //turned into text now, on the caller's thread - and before a slot is claimed, so a failing toString() can't
+        //leave a claimed slot that is never published
+        arg1 = snapshot(arg1);
+        arg2 = snapshot(arg2);
+        arg3 = snapshot(arg3);
+        long sequence;
+        do {
+            sequence = nextSequenceToClaim.get();
+            if (sequence - nextSequenceToConsume >= ringBuffer.length) {
+                //buffer is full: drop the event rather than block the caller
+                droppedEvents.increment();
+                return;
+            }
+        } while (!nextSequenceToClaim.compareAndSet(sequence, sequence + 1));
+
+        LogEvent event = ringBuffer[(int) sequence & indexMask];
+        event.timestamp = System.currentTimeMillis();
+        event.level = level;
+        event.threadName = Thread.currentThread().getName();
+        event.loggerName = loggerName;
+        event.format = format;
+        event.argCount = argCount;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.arg3 = arg3;
+        event.throwable = throwable;
+        //publish the slot to the writer thread. the volatile write comes before the read of isWriterParked, and the
+        //writer sets isWriterParked before it checks for an event again - so at least one side sees the other
+        event.sequence = sequence;
+        if (isWriterParked) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        int idleIterations = 0;
+        while (true) {
+            long sequence = nextSequenceToConsume;
+            LogEvent event = ringBuffer[(int) sequence & indexMask];
+            if (event.sequence != sequence) {
+                //nothing published yet - spin a little (events tend to come in bursts), then report drops (if any)
+                //and wait for new events
+                if (++idleIterations < SPIN_ITERATIONS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                idleIterations = 0;
+                long drops = droppedEvents.sum();
+                if (drops != reportedDrops) {
+                    output.println("WARN [async-log-writer] " + (drops - reportedDrops) + " log events were dropped (buffer full)");
+                    reportedDrops = drops;
+                }
+                output.flush();
+                isWriterParked = true;
+                //check again after registering, so a publish in between is not missed
+                if (event.sequence != sequence) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                isWriterParked = false;
+                continue;
+            }
+            idleIterations = 0;
+
+            try {
+                line.setLength(0);
+                formatEvent(event, line);
+                output.println(line);
+                if (event.throwable != null) {
+                    event.throwable.printStackTrace(output);
+                }
+            } catch (Throwable e) {
+                //e.g. a throwable whose stack trace can't be printed. the writer must outlive any single event,
+                //or the ring fills up and every later event is dropped
+                output.println("ERROR [async-log-writer] Couldn't write an event of " + event.loggerName + " (\"" + event.format + "\"): " + e);
+            } finally {
+                //release the references, then free the slot for producers
+                event.arg1 = event.arg2 = event.arg3 = null;
+                event.throwable = null;
+                nextSequenceToConsume = sequence + 1;
+            }
+        }
+    }
+
+
+    //the writer thread is a daemon: without this the last events (often the ones that explain the shutdown) are lost.
+    //waits for the events that were claimed by now, unless a producer died before it published its event
+    private void flushOnShutdown() {
+        long lastClaimedSequence = nextSequenceToClaim.get();
+        long deadline = System.nanoTime() + SHUTDOWN_FLUSH_TIMEOUT_NANOS;
+        while (nextSequenceToConsume < lastClaimedSequence && System.nanoTime() - deadline < 0) {
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        output.flush();
+    }
+
+
+    //values that can't change are kept as they are, everything else becomes its text
+    private static Object snapshot(Object arg) {
+        if (arg == null || arg instanceof String || arg instanceof Enum || arg instanceof Integer || arg instanceof Long
+                || arg instanceof Boolean || arg instanceof Double || arg instanceof Float || arg instanceof Short
+                || arg instanceof Byte || arg instanceof Character) {
+            return arg;
+        }
+        try {
+            return (arg instanceof Object[]) ? Arrays.deepToString((Object[]) arg) : arg.toString();
+        } catch (RuntimeException e) {
+            return "[toString() of " + arg.getClass().getName() + " failed: " + e + "]";
+        }
+    }
+
+
+    private static void formatEvent(LogEvent event, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(event.timestamp)).append(' ')
+                .append(event.level).append(" [")
+                .append(event.threadName).append("] ")
+                .append(event.loggerName).append(" - ");
+
+        //replace each "{}" placeholder with the next argument
+        Object[] args = {event.arg1, event.arg2, event.arg3};
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+        while (argIndex < event.argCount && (placeholder = event.format.indexOf("{}", start)) != -1) {
+            line.append(event.format, start, placeholder);
+            line.append(args[argIndex++]);
+            start = placeholder + 2;
+        }
+        line.append(event.format, start, event.format.length());
+    }
+
+
+    private static class LogEvent {
+        private volatile long sequence = -1;
+        private long timestamp;
+        private LogLevel level;
+        private String threadName;
+        private String loggerName;
+        private String format;
+        private int argCount;
+        private Object arg1;
+        private Object arg2;
+        private Object arg3;
+        private Throwable throwable;
+    }
+}
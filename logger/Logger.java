@@ -0,0 +1,104 @@
+package logger;
+
+//logging facade with levels and parameterized messages ("{}" placeholders).
+//the level check is a single volatile read, so disabled log calls don't build any strings. enabled ones only turn
+//their mutable arguments into text on the caller's thread - the message itself is formatted on the background
+//writer thread
+public class Logger {
+    private static volatile LogLevel globalLevel = initialLevel();
+    private final String name;
+
+    private Logger(String name) {
+        this.name = name;
+    }
+
+    public static Logger getLogger(Class<?> clazz) {
+        return new Logger(clazz.getSimpleName());
+    }
+
+    public static void setLevel(LogLevel level) {
+        if (level == null) {
+            throw new IllegalArgumentException("Invalid log level");
+        }
+        globalLevel = level;
+    }
+
+    public static LogLevel getLevel() {
+        return globalLevel;
+    }
+
+
+    public boolean isEnabled(LogLevel level) {
+        return level.compareTo(globalLevel) >= 0 && level != LogLevel.OFF;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(LogLevel.DEBUG);
+    }
+
+
+    public void trace(String format, Object arg) {
+        log(LogLevel.TRACE, format, 1, arg, null, null, null);
+    }
+
+    public void debug(String format) {
+        log(LogLevel.DEBUG, format, 0, null, null, null, null);
+    }
+
+    public void debug(String format, Object arg) {
+        log(LogLevel.DEBUG, format, 1, arg, null, null, null);
+    }
+
+    public void debug(String format, Object arg1, Object arg2) {
+        log(LogLevel.DEBUG, format, 2, arg1, arg2, null, null);
+    }
+
+    public void debug(String format, Object arg1, Object arg2, Object arg3) {
+        log(LogLevel.DEBUG, format, 3, arg1, arg2, arg3, null);
+    }
+
+    public void info(String format) {
+        log(LogLevel.INFO, format, 0, null, null, null, null);
+    }
+
+    public void info(String format, Object arg) {
+        log(LogLevel.INFO, format, 1, arg, null, null, null);
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        log(LogLevel.INFO, format, 2, arg1, arg2, null, null);
+    }
+
+    public void warn(String format, Object arg) {
+        log(LogLevel.WARN, format, 1, arg, null, null, null);
+    }
+
+    public void warn(String format, Object arg1, Object arg2) {
+        log(LogLevel.WARN, format, 2, arg1, arg2, null, null);
+    }
+
+    public void error(String format, Throwable throwable) {
+        log(LogLevel.ERROR, format, 0, null, null, null, throwable);
+    }
+
+    public void error(String format, Object arg, Throwable throwable) {
+        log(LogLevel.ERROR, format, 1, arg, null, null, throwable);
+    }
+
+
+    private void log(LogLevel level, String format, int argCount, Object arg1, Object arg2, Object arg3, Throwable throwable) {
+        if (isEnabled(level)) {
+            AsyncLogWriter.getInstance().publish(level, name, format, argCount, arg1, arg2, arg3, throwable);
+        }
+    }
+
+
+    private static LogLevel initialLevel() {
+        String level = System.getProperty("gateway.log.level", LogLevel.INFO.name());
+        try {
+            return LogLevel.valueOf(level.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return LogLevel.INFO;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//lock-free, log-linear (HDR style) histogram of nanosecond latencies.
+//every power of two range is split into SUB_BUCKET_COUNT linear sub buckets, which keeps the relative error
+//under 1/SUB_BUCKET_COUNT for any value. recording is a couple of atomic increments and never allocates.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;    //2^36ns ~ 68 seconds, larger values are clamped
+    private static final long MAX_TRACKABLE_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong(0);
+    private final AtomicLong totalNanos = new AtomicLong(0);
+
+
+    public void record(long valueNanos) {
+        if (valueNanos < 0) {
+            valueNanos = 0;
+        }
+        counts.incrementAndGet(bucketIndexOf(Math.min(valueNanos, MAX_TRACKABLE_VALUE)));
+        totalNanos.addAndGet(valueNanos);
+        totalCount.incrementAndGet();
+    }
+
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getSumNanos() {
+        return totalNanos.get();
+    }
+
+
+    //number of recorded values that are lower than the given bound (bound should be a power of two)
+    public long getCountBelow(long boundNanos) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT && bucketUpperBound(i) <= boundNanos; ++i) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+
+    //approximate value at the given percentile (0-100), the upper bound of the bucket it falls into
+    public long getValueAtPercentile(double percentile) {
+        long countAtPercentile = (long) Math.ceil(totalCount.get() * (percentile / 100.0));
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            count += counts.get(i);
+            if (count >= countAtPercentile && count > 0) {
+                return bucketUpperBound(i);
+            }
+        }
+        return 0;
+    }
+
+
+    private static int bucketIndexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            //small values have an exact bucket
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+
+    //exclusive upper bound of the values that fall into the given bucket
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index + 1;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT;
+
+        return (SUB_BUCKET_COUNT + subBucket + 1) << shift;
+    }
+}
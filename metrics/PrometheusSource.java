@@ -0,0 +1,6 @@
+package metrics;
+
+//a component that exposes its own metrics on the /metrics endpoint, next to the request metrics
+public interface PrometheusSource {
+    void appendPrometheusText(StringBuilder text);
+}
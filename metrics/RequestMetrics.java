@@ -0,0 +1,100 @@
+package metrics;
+
+import connectionservice.Protocol;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+//per command key, per protocol, per stage latency histograms of the request processing pipeline.
+//the snapshot is rendered in the Prometheus text exposition format
+public class RequestMetrics {
+    private static final String STAGE_METRIC_NAME = "gateway_request_stage_seconds";
+    private static final String SHED_METRIC_NAME = "gateway_requests_shed_total";
+    private static final int FIRST_BOUND_EXPONENT = 10;  //2^10ns ~ 1 microsecond
+    private static final int LAST_BOUND_EXPONENT = 36;   //2^36ns ~ 68 seconds
+
+    private final Map<String, LatencyHistogram[][]> histogramsByCommand = new ConcurrentHashMap<>();
+    private final LongAdder shedRequests = new LongAdder();
+    private final List<PrometheusSource> additionalSources = new CopyOnWriteArrayList<>();
+
+
+    public void record(String commandKey, Protocol protocol, Stage stage, long nanos) {
+        LatencyHistogram[][] histograms = histogramsByCommand.get(commandKey);
+        if (histograms == null) {
+            //first time we see this command - slow path
+            histograms = histogramsByCommand.computeIfAbsent(commandKey, key -> createHistograms());
+        }
+        histograms[protocol.ordinal()][stage.ordinal()].record(nanos);
+    }
+
+    public void recordShedRequest() {
+        shedRequests.increment();
+    }
+
+    public void addSource(PrometheusSource source) {
+        additionalSources.add(source);
+    }
+
+
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+
+        text.append("# HELP ").append(STAGE_METRIC_NAME).append(" Time spent in each stage of request processing.\n");
+        text.append("# TYPE ").append(STAGE_METRIC_NAME).append(" histogram\n");
+        for (Map.Entry<String, LatencyHistogram[][]> entry : histogramsByCommand.entrySet()) {
+            for (Protocol protocol : Protocol.values()) {
+                for (Stage stage : Stage.values()) {
+                    LatencyHistogram histogram = entry.getValue()[protocol.ordinal()][stage.ordinal()];
+                    if (histogram.getCount() > 0) {
+                        appendHistogram(text, entry.getKey(), protocol, stage, histogram);
+                    }
+                }
+            }
+        }
+
+        text.append("# HELP ").append(SHED_METRIC_NAME).append(" Requests rejected by admission control.\n");
+        text.append("# TYPE ").append(SHED_METRIC_NAME).append(" counter\n");
+        text.append(SHED_METRIC_NAME).append(' ').append(shedRequests.sum()).append('\n');
+
+        for (PrometheusSource source : additionalSources) {
+            source.appendPrometheusText(text);
+        }
+
+        return text.toString();
+    }
+
+
+    private void appendHistogram(StringBuilder text, String commandKey, Protocol protocol, Stage stage, LatencyHistogram histogram) {
+        String labels = "command=\"" + escapeLabelValue(commandKey) + "\",protocol=\"" + protocol + "\",stage=\"" + stage.getLabel() + "\"";
+        //read the count first, so the buckets are never lower than it when requests are recorded concurrently
+        long count = histogram.getCount();
+        for (int exponent = FIRST_BOUND_EXPONENT; exponent <= LAST_BOUND_EXPONENT; ++exponent) {
+            long boundNanos = 1L << exponent;
+            text.append(STAGE_METRIC_NAME).append("_bucket{").append(labels)
+                    .append(",le=\"").append(boundNanos / 1e9).append("\"} ")
+                    .append(Math.min(count, histogram.getCountBelow(boundNanos))).append('\n');
+        }
+        text.append(STAGE_METRIC_NAME).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+        text.append(STAGE_METRIC_NAME).append("_sum{").append(labels).append("} ").append(histogram.getSumNanos() / 1e9).append('\n');
+        text.append(STAGE_METRIC_NAME).append("_count{").append(labels).append("} ").append(count).append('\n');
+    }
+
+
+    private static LatencyHistogram[][] createHistograms() {
+        LatencyHistogram[][] histograms = new LatencyHistogram[Protocol.values().length][Stage.values().length];
+        for (LatencyHistogram[] protocolHistograms : histograms) {
+            for (int i = 0; i < protocolHistograms.length; ++i) {
+                protocolHistograms[i] = new LatencyHistogram();
+            }
+        }
+        return histograms;
+    }
+
+
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,20 @@
+package metrics;
+
+//the stages of handling a single request, in the order they happen
+public enum Stage {
+    QUEUE("queue"),         //time waiting in the thread pool's queue
+    PARSE("parse"),         //parsing the raw request into key and data
+    FACTORY("factory"),     //creating the command in the command factory
+    EXECUTE("execute"),     //Command.execute(), including the respond stage
+    RESPOND("respond");     //RespondableChannel.respond()
+
+    private final String label;
+
+    Stage(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,132 @@
+package pluginservice;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+//the start of a .class file: access flags, the class name, the superclass and the direct interfaces.
+//read straight from the bytes, so the class is neither loaded nor initialized
+final class ClassFileHeader {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ABSTRACT = 0x0400;
+    //constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELD_REF = 9;
+    private static final int CONSTANT_METHOD_REF = 10;
+    private static final int CONSTANT_INTERFACE_METHOD_REF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private final int accessFlags;
+    private final String className;
+    private final String superClassName;    //null for java.lang.Object
+    private final String[] interfaceNames;
+
+    private ClassFileHeader(int accessFlags, String className, String superClassName, String[] interfaceNames) {
+        this.accessFlags = accessFlags;
+        this.className = className;
+        this.superClassName = superClassName;
+        this.interfaceNames = interfaceNames;
+    }
+
+
+    //reads only up to the interfaces table. names are binary names (com.example.Foo)
+    static ClassFileHeader read(InputStream classFile) throws IOException {
+        DataInputStream in = new DataInputStream(classFile);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort();     //minor version
+        in.readUnsignedShort();     //major version
+
+        int constantPoolCount = in.readUnsignedShort();
+        String[] utf8Constants = new String[constantPoolCount];
+        int[] classNameIndexes = new int[constantPoolCount];
+        for (int i = 1; i < constantPoolCount; ++i) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    utf8Constants[i] = in.readUTF();
+                    break;
+                case CONSTANT_CLASS:
+                    classNameIndexes[i] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    in.skipBytes(2);
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    in.skipBytes(3);
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELD_REF:
+                case CONSTANT_METHOD_REF:
+                case CONSTANT_INTERFACE_METHOD_REF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    in.skipBytes(4);
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    //8 byte constants take two entries of the pool
+                    in.skipBytes(8);
+                    ++i;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        int accessFlags = in.readUnsignedShort();
+        String className = classNameAt(in.readUnsignedShort(), utf8Constants, classNameIndexes);
+        int superClassIndex = in.readUnsignedShort();
+        String superClassName = (superClassIndex == 0) ? null : classNameAt(superClassIndex, utf8Constants, classNameIndexes);
+        String[] interfaceNames = new String[in.readUnsignedShort()];
+        for (int i = 0; i < interfaceNames.length; ++i) {
+            interfaceNames[i] = classNameAt(in.readUnsignedShort(), utf8Constants, classNameIndexes);
+        }
+        return new ClassFileHeader(accessFlags, className, superClassName, interfaceNames);
+    }
+
+
+    private static String classNameAt(int classIndex, String[] utf8Constants, int[] classNameIndexes) throws IOException {
+        if (classIndex <= 0 || classIndex >= classNameIndexes.length || utf8Constants[classNameIndexes[classIndex]] == null) {
+            throw new IOException("Invalid class reference in the constant pool");
+        }
+        return utf8Constants[classNameIndexes[classIndex]].replace('/', '.');
+    }
+
+
+    String getClassName() {
+        return className;
+    }
+
+    String getSuperClassName() {
+        return superClassName;
+    }
+
+    String[] getInterfaceNames() {
+        return interfaceNames;
+    }
+
+    //a class that can be instantiated: not an interface and not abstract
+    boolean isConcrete() {
+        return (accessFlags & (ACC_INTERFACE | ACC_ABSTRACT)) == 0;
+    }
+}
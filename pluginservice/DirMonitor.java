@@ -1,23 +1,57 @@
 package pluginservice;
 
+import logger.Logger;
+import threadpool.ThreadPool;
+
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
+//watches the plugin directory and hands every changed JAR to the action - once per change, not once per event.
+//copying a JAR fires a burst of events while the file is still being written, so the events of a path are
+//coalesced: the action runs only after the path was quiet for the quiet period, and only once two checks a quiet
+//period apart found the same size and content hash. the checks and the actions run on a small pool of loaders, so
+//a slow JAR doesn't hold up the others, and the action never runs for the same path twice at the same time
 public class DirMonitor implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(DirMonitor.class);
+    public static final long DEFAULT_QUIET_PERIOD_MILLIS = 500;
+    public static final int DEFAULT_NUM_OF_LOADERS = 2;
+    private static final String JAR_SUFFIX = ".jar";
     private final String pathOfDirToMonitor;
     private final Consumer<Path> actionOnJarDetected;
+    private final long quietPeriodNanos;
+    private final ThreadPool loaders;
+    private final Map<Path, PendingChange> pendingChanges = new HashMap<>();   //guarded by itself
+    private final Map<Path, String> handledHashes = new HashMap<>();    //the content the action last ran on. guarded by pendingChanges
+    private volatile WatchService watchService = null;
+    private volatile boolean isStopped = false;
 
     public DirMonitor(String pathOfDirToMonitor, Consumer<Path> actionOnJarDetected) {
+        this(pathOfDirToMonitor, actionOnJarDetected, DEFAULT_QUIET_PERIOD_MILLIS, DEFAULT_NUM_OF_LOADERS);
+    }
+
+    public DirMonitor(String pathOfDirToMonitor, Consumer<Path> actionOnJarDetected, long quietPeriodMillis, int numOfLoaders) {
         if (pathOfDirToMonitor == null || pathOfDirToMonitor.isEmpty()) {
             throw new IllegalArgumentException("Invalid path to directory");
         }
         if (actionOnJarDetected == null) {
             throw new IllegalArgumentException("Invalid callback action function on jar detected");
         }
+        if (quietPeriodMillis < 0) {
+            throw new IllegalArgumentException("Quiet period cannot be negative");
+        }
+        if (numOfLoaders <= 0) {
+            throw new IllegalArgumentException("Number of loaders must be positive");
+        }
 
         this.pathOfDirToMonitor = pathOfDirToMonitor;
         this.actionOnJarDetected = actionOnJarDetected;
+        this.quietPeriodNanos = TimeUnit.MILLISECONDS.toNanos(quietPeriodMillis);
+        this.loaders = new ThreadPool(numOfLoaders);
     }
 
 
@@ -27,42 +61,73 @@ public class DirMonitor implements Runnable {
     }
 
 
-    public void monitorDirectory() {
-        WatchService watchService;
+    //starts recording the changes, which monitorDirectory then handles. call it before loading what's already in the
+    //directory, so a JAR that is copied in meanwhile isn't missed. monitorDirectory calls it if it wasn't called
+    public void watch() {
+        if (watchService != null) {
+            return;
+        }
+        WatchService newWatchService;
         try {
-            watchService = FileSystems.getDefault().newWatchService();
+            newWatchService = FileSystems.getDefault().newWatchService();
         } catch (IOException e) {
             throw new RuntimeException("Failed to initiate Watch Service", e);
         }
 
-        Path pathToMonitor = Paths.get(this.pathOfDirToMonitor);
-
         try {
-            pathToMonitor.register(watchService,
+            Paths.get(this.pathOfDirToMonitor).register(newWatchService,
                     StandardWatchEventKinds.ENTRY_MODIFY,
                     StandardWatchEventKinds.ENTRY_CREATE);
             //we don't handle JARs being deleted (so no ENTRY_DELETE)
         } catch (IOException e) {
             throw new RuntimeException("Failed to register new Watch Service events", e);
         }
+        watchService = newWatchService;
+    }
+
+
+    //records that the action already ran on this content of the file (e.g. when the server loaded it on start), so
+    //the events of the file that come in meanwhile don't run the action again unless the content is different
+    public void markHandled(String fileName, String contentHash) {
+        synchronized (pendingChanges) {
+            handledHashes.put(Paths.get(pathOfDirToMonitor).resolve(fileName), contentHash);
+        }
+    }
+
+
+    public void monitorDirectory() {
+        watch();
+        Path pathToMonitor = Paths.get(this.pathOfDirToMonitor);
 
         WatchKey key;
         try {
             while ((key = watchService.take()) != null) {
                 for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        //events were lost - the next event of each path still triggers its check
+                        LOGGER.warn("Missed events of {}", pathToMonitor);
+                        continue;
+                    }
+                    Path changedPath = pathToMonitor.resolve((Path) event.context());
+                    if (!changedPath.getFileName().toString().endsWith(JAR_SUFFIX)) {
+                        //e.g. the plugin index, which is rewritten after every load: not worth a debounce and two hashes
+                        continue;
+                    }
                     try {
-                        actionOnJarDetected.accept(pathToMonitor.resolve((Path) event.context()));
+                        onChange(changedPath);
                     } catch (Throwable e) {
                         //ignore exception to keep DirMonitor thread alive
-                        e.printStackTrace();
+                        LOGGER.error("Failed handling JAR event {}", event.context(), e);
                     }
                 }
                 key.reset();
 
             }
+        } catch (ClosedWatchServiceException e) {
+            //stopped
         } catch (InterruptedException e) {
             //ignore exception to keep DirMonitor thread alive
-            e.printStackTrace();
+            LOGGER.error("DirMonitor was interrupted", e);
         }
 
         try {
@@ -72,4 +137,126 @@ public class DirMonitor implements Runnable {
         }
 
     }
+
+
+    //stops watching. pending changes are dropped, and an action that is already running is finished
+    public void stop() {
+        isStopped = true;
+        WatchService currentWatchService = watchService;
+        if (currentWatchService != null) {
+            try {
+                currentWatchService.close();
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't close the watch service of {}: {}", pathOfDirToMonitor, e);
+            }
+        }
+        loaders.shutdown();
+    }
+
+
+    //an event of the path: (re)starts its quiet period. only the first event of a burst schedules a check
+    private void onChange(Path path) {
+        synchronized (pendingChanges) {
+            PendingChange pendingChange = pendingChanges.get(path);
+            if (pendingChange == null) {
+                pendingChange = new PendingChange();
+                pendingChanges.put(path, pendingChange);
+            }
+            pendingChange.lastEventTime = System.nanoTime();
+            if (!pendingChange.isCheckScheduled) {
+                pendingChange.isCheckScheduled = true;
+                scheduleCheck(path, quietPeriodNanos);
+            }
+        }
+    }
+
+
+    private void check(Path path) {
+        PendingChange pendingChange;
+        long checkStartTime = System.nanoTime();
+        synchronized (pendingChanges) {
+            pendingChange = pendingChanges.get(path);
+            long remainingQuietNanos = pendingChange.lastEventTime + quietPeriodNanos - checkStartTime;
+            if (remainingQuietNanos > 0) {
+                //more events came in since the check was scheduled
+                scheduleCheck(path, remainingQuietNanos);
+                return;
+            }
+        }
+
+        File file = path.toFile();
+        long size = file.length();
+        String hash = null;
+        if (file.isFile()) {
+            try {
+                hash = PluginIndex.contentHash(file);
+            } catch (RuntimeException e) {
+                //e.g. the file is still locked by whoever writes it - try again after another quiet period
+                LOGGER.debug("Couldn't hash {} yet: {}", path, e.getMessage());
+            }
+        }
+
+        synchronized (pendingChanges) {
+            if (!file.isFile()) {
+                //deleted (or renamed) before it settled, or a directory. while the action of the previous change is
+                //still running the entry stays, so a file created again at the path waits for that action to finish
+                if (pendingChange.isActionRunning) {
+                    pendingChange.isCheckScheduled = false;
+                } else {
+                    pendingChanges.remove(path);
+                }
+                return;
+            }
+            if (hash == null || pendingChange.lastEventTime > checkStartTime || size != pendingChange.size
+                    || !hash.equals(pendingChange.hash) || pendingChange.isActionRunning) {
+                //still being written (or the action of the previous change is still running): look again later
+                pendingChange.size = size;
+                pendingChange.hash = hash;
+                scheduleCheck(path, quietPeriodNanos);
+                return;
+            }
+            pendingChange.isCheckScheduled = false;
+            if (hash.equals(handledHashes.get(path))) {
+                //touched, or copied again with the same content
+                pendingChanges.remove(path);
+                return;
+            }
+            pendingChange.isActionRunning = true;
+        }
+
+        try {
+            actionOnJarDetected.accept(path);
+        } catch (Throwable e) {
+            LOGGER.error("Failed handling JAR event {}", path.getFileName(), e);
+        } finally {
+            synchronized (pendingChanges) {
+                //a failed action is recorded too: the same content would fail again
+                handledHashes.put(path, hash);
+                pendingChange.isActionRunning = false;
+                if (!pendingChange.isCheckScheduled) {
+                    pendingChanges.remove(path);
+                }
+            }
+        }
+    }
+
+
+    //called with pendingChanges held
+    private void scheduleCheck(Path path, long delayNanos) {
+        if (isStopped) {
+            pendingChanges.remove(path);
+            return;
+        }
+        loaders.schedule(() -> check(path), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    //the events of one path that were not handled yet
+    private static class PendingChange {
+        private long lastEventTime;
+        private long size = -1;     //as of the previous check
+        private String hash = null;
+        private boolean isCheckScheduled = false;
+        private boolean isActionRunning = false;
+    }
 }
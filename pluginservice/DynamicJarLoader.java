@@ -1,18 +1,36 @@
 package pluginservice;
 
-import factory.Command;
+import jfrevents.PluginLoadEvent;
+import logger.Logger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
+//finds the classes of a plugin JAR that implement the plugin interface, and loads only those.
+//a JAR can declare its classes in META-INF/services/<interface name> (one class per line) or in the
+//Gateway-Commands manifest attribute. otherwise the class file headers are scanned: the superclasses and
+//interfaces are followed through the JAR, so a class that implements the interface through a superclass is
+//found too. either way the classes are loaded without being initialized
 public class DynamicJarLoader {
+    private static final Logger LOGGER = Logger.getLogger(DynamicJarLoader.class);
+    private static final String SERVICES_DIRECTORY = "META-INF/services/";
+    private static final String MANIFEST_ATTRIBUTE = "Gateway-Commands";
     private final String interfaceName;
     private final String pluginDirectory;
 
@@ -21,7 +39,11 @@ public class DynamicJarLoader {
         this.pluginDirectory = pluginDirectory;
     }
 
-    public List<Class<?>> loadClassesFromJAR(String pathOfJARFile) throws IOException, ClassNotFoundException {
+    //loads the classes through the given class loader (of the JAR's PluginGeneration), which owns them from now on.
+    //thread safe: JARs may be loaded in parallel
+    public List<Class<?>> loadClassesFromJAR(String pathOfJARFile, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        PluginLoadEvent pluginLoadEvent = new PluginLoadEvent();
+        pluginLoadEvent.begin();
         List<Class<?>> classList = new ArrayList<>();
         File jarFile = new File(pathOfJARFile);
 
@@ -31,39 +53,145 @@ public class DynamicJarLoader {
         }
 
         String fullPath = pluginDirectory + File.separator + jarFile.getName();
-//        System.out.println(fullPath);
-        JarFile jar = new JarFile(fullPath);
+        File pluginFile = new File(fullPath);
 
-        URL[] jarURL = {jarFile.toURI().toURL()};
-        URLClassLoader classLoader = new URLClassLoader(jarURL);
+        try (JarFile jar = new JarFile(pluginFile)) {
+            List<String> classNames = readDeclaredClassNames(jar);
+            if (classNames == null) {
+                classNames = findImplementingClassNames(jar, classLoader);
+            }
+
+            Class<?> pluginInterface = Class.forName(interfaceName, false, classLoader);
+            for (String className : classNames) {
+                Class<?> clazz = Class.forName(className, false, classLoader);
+                if (!pluginInterface.isAssignableFrom(clazz)) {
+                    LOGGER.warn("{} is declared as a plugin, but doesn't implement {}", className, interfaceName);
+                    continue;
+                }
+                classList.add(clazz);
+            }
+        }
+
+        if (pluginLoadEvent.shouldCommit()) {
+            pluginLoadEvent.jarPath = fullPath;
+            pluginLoadEvent.jarBytes = pluginFile.length();
+            pluginLoadEvent.loadedClasses = classList.size();
+            pluginLoadEvent.commit();
+        }
+        return classList;
+    }
+
+
+    //a class loader for the classes of the JAR (in the plugin directory). the caller closes it
+    public URLClassLoader newClassLoader(String pathOfJARFile) throws IOException {
+        File pluginFile = new File(pluginDirectory, new File(pathOfJARFile).getName());
+        URL[] jarURL = {pluginFile.toURI().toURL()};
+        return new URLClassLoader(jarURL);
+    }
+
+
+    //the class names from the JAR's services file or manifest, or null if the JAR declares none
+    private List<String> readDeclaredClassNames(JarFile jar) throws IOException {
+        JarEntry servicesEntry = jar.getJarEntry(SERVICES_DIRECTORY + interfaceName);
+        if (servicesEntry != null) {
+            List<String> classNames = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(jar.getInputStream(servicesEntry), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int commentStart = line.indexOf('#');
+                    if (commentStart != -1) {
+                        line = line.substring(0, commentStart);
+                    }
+                    line = line.trim();
+                    if (!line.isEmpty()) {
+                        classNames.add(line);
+                    }
+                }
+            }
+            return classNames;
+        }
+
+        Manifest manifest = jar.getManifest();
+        String declaredClasses = (manifest == null) ? null : manifest.getMainAttributes().getValue(MANIFEST_ATTRIBUTE);
+        if (declaredClasses == null) {
+            return null;
+        }
+        List<String> classNames = new ArrayList<>();
+        for (String className : declaredClasses.trim().split("[\\s,]+")) {
+            if (!className.isEmpty()) {
+                classNames.add(className);
+            }
+        }
+        return classNames;
+    }
 
+
+    //reads the header of every class in the JAR and returns the concrete classes that implement the interface
+    private List<String> findImplementingClassNames(JarFile jar, ClassLoader classLoader) throws IOException {
+        Map<String, ClassFileHeader> headers = new LinkedHashMap<>();
         Enumeration<JarEntry> jarEntries = jar.entries();
         while (jarEntries.hasMoreElements()) {
             JarEntry jarEntry = jarEntries.nextElement();
-            String className = jarEntry.getName();
-            if (className.endsWith(".class")) {
-                //adds the class to the class list if it class implements the relevant interface
-                processClass(className, classLoader, classList);
+            String entryName = jarEntry.getName();
+            if (!entryName.endsWith(".class") || entryName.startsWith("META-INF/") || entryName.endsWith("module-info.class")) {
+                continue;
+            }
+            try (InputStream classFile = new BufferedInputStream(jar.getInputStream(jarEntry))) {
+                ClassFileHeader header = ClassFileHeader.read(classFile);
+                headers.put(header.getClassName(), header);
             }
         }
-        return classList;
+
+        Map<String, Boolean> implementsInterface = new HashMap<>();
+        List<String> classNames = new ArrayList<>();
+        for (ClassFileHeader header : headers.values()) {
+            if (header.isConcrete() && implementsInterface(header.getClassName(), headers, implementsInterface, classLoader)) {
+                classNames.add(header.getClassName());
+            }
+        }
+        return classNames;
     }
 
 
-    private void processClass(String className, URLClassLoader classLoader, List<Class<?>> classList) throws ClassNotFoundException {
-        String fullyQualifiedClassName = className.replace('/', '.').substring(0, className.length() - ".class".length());
-//                System.out.println(fullyQualifiedClassName);    //TODO delete test prints
-        Class<?> clazz = classLoader.loadClass(fullyQualifiedClassName);
-//                System.out.println("Current class = " + clazz.getName());
-        Class<?>[] currentInterfaces = clazz.getInterfaces();
-        for (Class<?> inter : currentInterfaces) {
-//                    System.out.println("Interface = " + inter.getName());
-            if (inter.getName().equals(interfaceName)) {
-//                        System.out.println("Found interface " + inter.getName() + " in class " + clazz.getName());
-                classList.add(clazz);
+    //follows the superclass and the interfaces of the class through the JAR's headers. types from outside the JAR
+    //(e.g. a base command of the server) are looked up through the class loader, without initializing them
+    private boolean implementsInterface(String className, Map<String, ClassFileHeader> headers,
+                                        Map<String, Boolean> results, ClassLoader classLoader) {
+        if (className.equals(interfaceName)) {
+            return true;
+        }
+        Boolean knownResult = results.get(className);
+        if (knownResult != null) {
+            return knownResult;
+        }
+        results.put(className, false);  //in case of a cycle (only in a broken JAR)
+
+        boolean result = false;
+        ClassFileHeader header = headers.get(className);
+        if (header == null) {
+            result = isOutsideTypeImplementing(className, classLoader);
+        } else {
+            if (header.getSuperClassName() != null) {
+                result = implementsInterface(header.getSuperClassName(), headers, results, classLoader);
+            }
+            for (String superInterfaceName : header.getInterfaceNames()) {
+                result = result || implementsInterface(superInterfaceName, headers, results, classLoader);
             }
         }
+        results.put(className, result);
+        return result;
     }
 
-
+    private boolean isOutsideTypeImplementing(String className, ClassLoader classLoader) {
+        if (className.startsWith("java.")) {
+            //JDK types don't implement our interfaces
+            return false;
+        }
+        try {
+            Class<?> pluginInterface = Class.forName(interfaceName, false, classLoader);
+            return pluginInterface.isAssignableFrom(Class.forName(className, false, classLoader));
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
 }
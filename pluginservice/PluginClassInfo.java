@@ -0,0 +1,30 @@
+package pluginservice;
+
+//what the server needs to know about a plugin class to register it without loading it. the constructor isn't part
+//of it: a command is always created with its JsonObject constructor, which is looked up when the class is loaded
+public final class PluginClassInfo {
+    private final String className;
+    private final String commandKey;
+    private final boolean isNonBlocking;
+
+    public PluginClassInfo(String className, String commandKey, boolean isNonBlocking) {
+        if (className == null || commandKey == null) {
+            throw new IllegalArgumentException("Invalid plugin class info");
+        }
+        this.className = className;
+        this.commandKey = commandKey;
+        this.isNonBlocking = isNonBlocking;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getCommandKey() {
+        return commandKey;
+    }
+
+    public boolean isNonBlocking() {
+        return isNonBlocking;
+    }
+}
@@ -0,0 +1,105 @@
+package pluginservice;
+
+import logger.Logger;
+
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//one loaded version of a plugin JAR, with its own class loader.
+//the generation is reference counted: its registration holds one reference, and every command created from it holds
+//one while it runs. when the JAR is replaced the registration's reference is dropped (retire), and once the last
+//running command is done the class loader is closed - which closes the JAR file - so nothing keeps the generation's
+//classes (and their metaspace) alive anymore
+public class PluginGeneration {
+    private static final Logger LOGGER = Logger.getLogger(PluginGeneration.class);
+    private final DynamicJarLoader dynamicJarLoader;
+    private final String jarPath;
+    private final int version;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean isRetired = new AtomicBoolean(false);
+    private URLClassLoader classLoader = null;  //created on first use
+    private boolean isClosed = false;
+
+    public PluginGeneration(DynamicJarLoader dynamicJarLoader, String jarPath, int version) {
+        this.dynamicJarLoader = dynamicJarLoader;
+        this.jarPath = jarPath;
+        this.version = version;
+    }
+
+
+    public synchronized ClassLoader getClassLoader() {
+        if (isClosed) {
+            throw new IllegalStateException("Plugin generation " + version + " of " + jarPath + " is closed");
+        }
+        if (classLoader == null) {
+            try {
+                classLoader = dynamicJarLoader.newClassLoader(jarPath);
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't open plugin JAR " + jarPath, e);
+            }
+        }
+        return classLoader;
+    }
+
+
+    //for a command that is about to run. false if the generation was retired and already drained
+    public boolean tryAcquire() {
+        while (true) {
+            int currentReferences = references.get();
+            if (currentReferences == 0) {
+                return false;
+            }
+            if (references.compareAndSet(currentReferences, currentReferences + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            close();
+        }
+    }
+
+    //the JAR was replaced (or failed to load): no new commands are created from this generation
+    public void retire() {
+        if (isRetired.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getJarPath() {
+        return jarPath;
+    }
+
+    //the number of running commands (plus one while the generation is registered)
+    public int getReferences() {
+        return references.get();
+    }
+
+    public synchronized boolean isClosed() {
+        return isClosed;
+    }
+
+
+    private synchronized void close() {
+        isClosed = true;
+        if (classLoader == null) {
+            return;
+        }
+        try {
+            classLoader.close();
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't close the class loader of {}: {}", jarPath, e);
+        }
+        classLoader = null;
+        LOGGER.info("Plugin generation {} of {} drained and closed", version, jarPath);
+    }
+}
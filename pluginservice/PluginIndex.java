@@ -0,0 +1,172 @@
+package pluginservice;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import logger.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+//the scan results of the plugin JARs, persisted in the plugin directory so a restart doesn't scan unchanged JARs.
+//an entry is valid while its JAR has the same size and modification time. if only the modification time changed
+//(e.g. the JAR was copied again), the content hash decides, so the hash is only computed for JARs that look changed
+public class PluginIndex {
+    public static final String FILE_NAME = ".plugin-index.json";
+    private static final Logger LOGGER = Logger.getLogger(PluginIndex.class);
+    private static final int FORMAT_VERSION = 1;
+    private final Path indexPath;
+    private final JsonObject jarEntries;    //by JAR file name
+    private boolean isModified = false;
+
+    public PluginIndex(String pluginDirectory) {
+        indexPath = new File(pluginDirectory, FILE_NAME).toPath();
+        jarEntries = readIndexFile();
+    }
+
+
+    //the classes of the JAR, or null if the JAR is not in the index or has changed since
+    public synchronized List<PluginClassInfo> lookup(File jarFile) {
+        try {
+            return readJarEntry(jarFile);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Invalid plugin index entry for {} ({}) - rescanning it", jarFile.getName(), e);
+            return null;
+        }
+    }
+
+    private List<PluginClassInfo> readJarEntry(File jarFile) {
+        JsonObject jarEntry = jarEntries.getAsJsonObject(jarFile.getName());
+        if (jarEntry == null || jarEntry.get("size").getAsLong() != jarFile.length()) {
+            return null;
+        }
+        if (jarEntry.get("lastModified").getAsLong() != jarFile.lastModified()) {
+            if (!jarEntry.get("sha256").getAsString().equals(contentHash(jarFile))) {
+                return null;
+            }
+            jarEntry.addProperty("lastModified", jarFile.lastModified());
+            isModified = true;
+        }
+
+        List<PluginClassInfo> classes = new ArrayList<>();
+        for (JsonElement classElement : jarEntry.getAsJsonArray("classes")) {
+            //indexes written before the constructor was dropped from the entries still have it - it's ignored
+            JsonObject classEntry = classElement.getAsJsonObject();
+            classes.add(new PluginClassInfo(classEntry.get("className").getAsString(), classEntry.get("commandKey").getAsString(),
+                    classEntry.get("nonBlocking").getAsBoolean()));
+        }
+        return classes;
+    }
+
+
+    //the content hash of the JAR as of its last lookup or update (whatever the file holds now), or null if the JAR
+    //is not in the index
+    public synchronized String getContentHash(String jarName) {
+        JsonObject jarEntry = jarEntries.getAsJsonObject(jarName);
+        return (jarEntry == null) ? null : jarEntry.get("sha256").getAsString();
+    }
+
+
+    public synchronized void update(File jarFile, List<PluginClassInfo> classes) {
+        JsonObject jarEntry = new JsonObject();
+        jarEntry.addProperty("size", jarFile.length());
+        jarEntry.addProperty("lastModified", jarFile.lastModified());
+        jarEntry.addProperty("sha256", contentHash(jarFile));
+        JsonArray classEntries = new JsonArray();
+        for (PluginClassInfo classInfo : classes) {
+            JsonObject classEntry = new JsonObject();
+            classEntry.addProperty("className", classInfo.getClassName());
+            classEntry.addProperty("commandKey", classInfo.getCommandKey());
+            classEntry.addProperty("nonBlocking", classInfo.isNonBlocking());
+            classEntries.add(classEntry);
+        }
+        jarEntry.add("classes", classEntries);
+        jarEntries.add(jarFile.getName(), jarEntry);
+        isModified = true;
+    }
+
+
+    //writes the index if anything changed. JARs that are gone are dropped from it
+    public synchronized void save() {
+        List<String> removedJars = new ArrayList<>();
+        for (Map.Entry<String, JsonElement> jarEntry : jarEntries.entrySet()) {
+            if (!indexPath.resolveSibling(jarEntry.getKey()).toFile().exists()) {
+                removedJars.add(jarEntry.getKey());
+            }
+        }
+        for (String removedJar : removedJars) {
+            jarEntries.remove(removedJar);
+            isModified = true;
+        }
+        if (!isModified) {
+            return;
+        }
+
+        JsonObject index = new JsonObject();
+        index.addProperty("version", FORMAT_VERSION);
+        index.add("jars", jarEntries);
+        //write a temporary file and move it over the index, so a crash never leaves a half written index behind
+        Path temporaryPath = indexPath.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            Files.write(temporaryPath, index.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            isModified = false;
+        } catch (IOException e) {
+            //the index is only an optimization: the next start scans again
+            LOGGER.warn("Couldn't write the plugin index {}: {}", indexPath, e);
+        }
+    }
+
+
+    //true for the index file and its temporary file, which live next to the JARs
+    public static boolean isIndexFile(Path path) {
+        return path.getFileName().toString().startsWith(FILE_NAME);
+    }
+
+
+    private JsonObject readIndexFile() {
+        if (!Files.exists(indexPath)) {
+            return new JsonObject();
+        }
+        try {
+            JsonObject index = JsonParser.parseString(new String(Files.readAllBytes(indexPath), StandardCharsets.UTF_8)).getAsJsonObject();
+            if (index.get("version").getAsInt() == FORMAT_VERSION) {
+                return index.getAsJsonObject("jars");
+            }
+            LOGGER.info("Plugin index {} has an old format - rescanning all the JARs", indexPath);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Couldn't read the plugin index {} ({}) - rescanning all the JARs", indexPath, e);
+        }
+        return new JsonObject();
+    }
+
+
+    static String contentHash(File jarFile) {
+        try (InputStream in = Files.newInputStream(jarFile.toPath())) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Couldn't hash " + jarFile, e);
+        }
+    }
+}
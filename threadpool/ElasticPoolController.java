@@ -0,0 +1,170 @@
+package threadpool;
+
+import logger.Logger;
+import metrics.PrometheusSource;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//grows and shrinks a ThreadPool between a core and a max size.
+//every sample interval it looks at the queue depth, the average time tasks waited in the queue and the fraction of
+//workers that are blocked inside a task (JDBC, I/O...). resizing goes through setNumOfThreads (poison pills).
+//a decision needs several consecutive samples in the same direction, and is followed by a cool down, so the pool
+//doesn't oscillate
+public class ElasticPoolController implements Runnable, PrometheusSource {
+    private static final Logger LOGGER = Logger.getLogger(ElasticPoolController.class);
+    private static final int SAMPLES_TO_GROW = 2;
+    private static final int SAMPLES_TO_SHRINK = 5;
+    private static final int COOL_DOWN_SAMPLES = 3;
+    private static final int QUEUED_TASKS_PER_THREAD_TO_GROW = 2;
+    private static final double BLOCKED_FRACTION_TO_GROW = 0.5;
+    private static final double BUSY_FRACTION_TO_SHRINK = 0.5;
+
+    private final ThreadPool threadPool;
+    private final int coreSize;
+    private final int maxSize;
+    private final long sampleIntervalMillis;
+    private final long targetQueueWaitNanos;
+    private final Thread controllerThread = new Thread(this, "elastic-pool-controller");
+    private volatile boolean isRunning = false;
+
+    //controller thread only
+    private int growSignals = 0;
+    private int shrinkSignals = 0;
+    private int coolDownSamples = 0;
+    private long lastStartedTasks = 0;
+    private long lastQueueWaitNanos = 0;
+
+    //published metrics
+    private final AtomicLong growDecisions = new AtomicLong(0);
+    private final AtomicLong shrinkDecisions = new AtomicLong(0);
+    private volatile int lastQueueDepth = 0;
+    private volatile double lastBlockedFraction = 0;
+    private volatile long lastAverageQueueWaitNanos = 0;
+
+
+    public ElasticPoolController(ThreadPool threadPool, int coreSize, int maxSize, long sampleInterval, long targetQueueWait, TimeUnit unit) {
+        if (threadPool == null) {
+            throw new IllegalArgumentException("Invalid thread pool");
+        }
+        if (coreSize < 1 || maxSize < coreSize) {
+            throw new IllegalArgumentException("Invalid pool size limits");
+        }
+        if (sampleInterval <= 0 || targetQueueWait <= 0) {
+            throw new IllegalArgumentException("Sample interval and target queue wait must be positive");
+        }
+        this.threadPool = threadPool;
+        this.coreSize = coreSize;
+        this.maxSize = maxSize;
+        this.sampleIntervalMillis = Math.max(1, unit.toMillis(sampleInterval));
+        this.targetQueueWaitNanos = unit.toNanos(targetQueueWait);
+        controllerThread.setDaemon(true);
+    }
+
+
+    public void start() {
+        isRunning = true;
+        controllerThread.start();
+    }
+
+    public void stop() {
+        isRunning = false;
+        controllerThread.interrupt();
+    }
+
+
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                Thread.sleep(sampleIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                sample();
+            } catch (RejectedExecutionException e) {
+                //the pool was shut down
+                return;
+            }
+        }
+    }
+
+
+    private void sample() {
+        int currentSize = threadPool.getCurrentNumberOfThreads();
+        int queueDepth = threadPool.getQueueSize();
+        int blockedWorkers = threadPool.getBlockedWorkerCount();
+        long startedTasks = threadPool.getStartedTaskCount();
+        long queueWaitNanos = threadPool.getTotalQueueWaitNanos();
+
+        long tasksInInterval = startedTasks - lastStartedTasks;
+        long averageQueueWaitNanos = (tasksInInterval == 0) ? 0 : (queueWaitNanos - lastQueueWaitNanos) / tasksInInterval;
+        double blockedFraction = (currentSize == 0) ? 0 : (double) blockedWorkers / currentSize;
+        lastStartedTasks = startedTasks;
+        lastQueueWaitNanos = queueWaitNanos;
+        lastQueueDepth = queueDepth;
+        lastBlockedFraction = blockedFraction;
+        lastAverageQueueWaitNanos = averageQueueWaitNanos;
+
+        if (threadPool.isPaused()) {
+            //all workers are parked on sleeping pills - the samples mean nothing
+            growSignals = shrinkSignals = 0;
+            return;
+        }
+        if (coolDownSamples > 0) {
+            --coolDownSamples;
+            return;
+        }
+
+        boolean isUnderPressure = queueDepth > currentSize * QUEUED_TASKS_PER_THREAD_TO_GROW
+                || averageQueueWaitNanos > targetQueueWaitNanos
+                || (queueDepth > 0 && blockedFraction >= BLOCKED_FRACTION_TO_GROW);
+        boolean isUnderUsed = queueDepth == 0
+                && averageQueueWaitNanos < targetQueueWaitNanos / 2
+                && (double) threadPool.getRunningWorkerCount() / currentSize < BUSY_FRACTION_TO_SHRINK;
+
+        growSignals = isUnderPressure ? growSignals + 1 : 0;
+        shrinkSignals = isUnderUsed ? shrinkSignals + 1 : 0;
+
+        if (growSignals >= SAMPLES_TO_GROW && currentSize < maxSize) {
+            //grow faster when many workers are blocked: they don't use the CPU anyway
+            int step = Math.max(1, (int) Math.ceil(currentSize * Math.max(0.25, blockedFraction)));
+            resize(currentSize, Math.min(maxSize, currentSize + step));
+            growDecisions.incrementAndGet();
+        } else if (shrinkSignals >= SAMPLES_TO_SHRINK && currentSize > coreSize) {
+            resize(currentSize, currentSize - 1);
+            shrinkDecisions.incrementAndGet();
+        }
+    }
+
+
+    private void resize(int currentSize, int newSize) {
+        LOGGER.info("resizing thread pool from {} to {} threads", currentSize, newSize);
+        threadPool.setNumOfThreads(newSize);
+        growSignals = shrinkSignals = 0;
+        coolDownSamples = COOL_DOWN_SAMPLES;
+    }
+
+
+    @Override
+    public void appendPrometheusText(StringBuilder text) {
+        text.append("# HELP gateway_threadpool_threads Current number of worker threads.\n");
+        text.append("# TYPE gateway_threadpool_threads gauge\n");
+        text.append("gateway_threadpool_threads ").append(threadPool.getCurrentNumberOfThreads()).append('\n');
+        text.append("# HELP gateway_threadpool_resize_decisions_total Resize decisions made by the elastic controller.\n");
+        text.append("# TYPE gateway_threadpool_resize_decisions_total counter\n");
+        text.append("gateway_threadpool_resize_decisions_total{direction=\"grow\"} ").append(growDecisions.get()).append('\n');
+        text.append("gateway_threadpool_resize_decisions_total{direction=\"shrink\"} ").append(shrinkDecisions.get()).append('\n');
+        text.append("# HELP gateway_threadpool_sampled_queue_depth Queue depth at the last controller sample.\n");
+        text.append("# TYPE gateway_threadpool_sampled_queue_depth gauge\n");
+        text.append("gateway_threadpool_sampled_queue_depth ").append(lastQueueDepth).append('\n');
+        text.append("# HELP gateway_threadpool_sampled_blocked_ratio Fraction of workers blocked inside a task at the last sample.\n");
+        text.append("# TYPE gateway_threadpool_sampled_blocked_ratio gauge\n");
+        text.append("gateway_threadpool_sampled_blocked_ratio ").append(lastBlockedFraction).append('\n');
+        text.append("# HELP gateway_threadpool_sampled_queue_wait_seconds Average queue wait of the tasks started in the last sample interval.\n");
+        text.append("# TYPE gateway_threadpool_sampled_queue_wait_seconds gauge\n");
+        text.append("gateway_threadpool_sampled_queue_wait_seconds ").append(lastAverageQueueWaitNanos / 1e9).append('\n');
+    }
+}
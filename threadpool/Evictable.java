@@ -0,0 +1,7 @@
+package threadpool;
+
+//a Runnable or Callable that wants to know when a full ThreadPool evicted it from the queue before it started,
+//e.g. to release resources or answer the client
+public interface Evictable {
+    void onEvicted();
+}
@@ -0,0 +1,8 @@
+package threadpool;
+
+public enum ExecutionMode {
+    //all workers take tasks from one shared priority queue
+    SHARED_QUEUE,
+    //tasks submitted from a worker go to the worker's own deque, idle workers steal from the other workers' deques
+    WORK_STEALING
+}
@@ -0,0 +1,37 @@
+package threadpool;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+//an executor that runs tasks by Priority: ThreadPool (platform worker threads) or VirtualThreadExecutor
+public interface PriorityExecutor extends Executor {
+    void execute(Runnable command, Priority p);
+
+    //submits a burst of commands with the same priority, in order. returns the number of commands accepted: the
+    //ones after them were rejected
+    default int executeAll(List<? extends Runnable> commands, Priority p) {
+        for (int i = 0; i < commands.size(); ++i) {
+            try {
+                execute(commands.get(i), p);
+            } catch (RejectedExecutionException e) {
+                return i;
+            }
+        }
+        return commands.size();
+    }
+
+    Future<?> submit(Runnable command, Priority p);
+
+    <T> Future<T> submit(Callable<T> command, Priority p);
+
+    //no new tasks are accepted, queued tasks still run
+    void shutdown();
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+
+    int getQueueSize();
+}
@@ -0,0 +1,14 @@
+package threadpool;
+
+//what a bounded ThreadPool does with a new task when its queue is full
+public enum RejectionPolicy {
+    //wait for space up to the pool's enqueue timeout, then throw RejectedExecutionException
+    BLOCK,
+    //throw RejectedExecutionException right away
+    REJECT,
+    //run the task in the submitting thread
+    CALLER_RUNS,
+    //cancel the oldest queued task of the lowest priority level (not above the new task's priority) to make room.
+    //if there is no such task, throw RejectedExecutionException right away
+    EVICT_LOWEST
+}
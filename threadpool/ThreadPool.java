@@ -1,18 +1,59 @@
 package threadpool;
 
+import waitingqueue.WaitStrategy;
 import waitingqueue.WaitablePQueue;
-
+import waitingqueue.WorkStealingDeque;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-
-public class ThreadPool implements Executor {
-    private final WaitablePQueue<Task<?>> taskQueue = new WaitablePQueue<>();
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ThreadPool implements PriorityExecutor, ThreadPoolMXBean {
+    //queue levels: one level for each Priority, plus a level above and a level below them for the control tasks
+    private static final int HIGHEST_PRIORITY = Priority.values().length + 1;
+    private static final int LOWEST_PRIORITY = 0;
+    //how long an idle worker in work stealing mode waits on the shared queue before it tries to steal again
+    private static final long IDLE_STEAL_RETRY_MILLIS = 10;
+    private static final long DEFAULT_ENQUEUE_TIMEOUT_MILLIS = 1000;
+    private static final long TIMER_TICK_MILLIS = 10;
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean IS_THREAD_CPU_TIME_SUPPORTED = THREAD_MX_BEAN.isThreadCpuTimeSupported();
+    //a RUNNABLE worker that used less CPU than this fraction of the wall time between two samples is blocked in I/O
+    private static final double BLOCKED_CPU_FRACTION = 0.1;
+    private static final long MIN_CPU_SAMPLE_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private final WaitablePQueue<Task<?>> taskQueue;
+    private final ExecutionMode executionMode;
+    private final RejectionPolicy rejectionPolicy;
+    private volatile long enqueueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_ENQUEUE_TIMEOUT_MILLIS);
+    private volatile int dequeueBatchSize = 1;
+    //created on the first schedule call
+    private volatile TimingWheel timingWheel = null;
+    //one-shot tasks until they are handed to the queue, periodic ones until they are done: cancelled on shutdown
+    private final Set<ScheduledTask<?>> pendingScheduledTasks = ConcurrentHashMap.newKeySet();
+    private final List<Worker> workers = new CopyOnWriteArrayList<>();
+    private final AtomicInteger idleWorkers = new AtomicInteger(0);
     private final AtomicInteger currentNumberOfThreads;
+    //statistics: striped counters, so the workers never contend on them
+    private final PriorityStats[] priorityStats = new PriorityStats[Priority.values().length];
+    private final LongAdder cancelledTasks = new LongAdder();
+    private final LongAdder rejectedTasks = new LongAdder();
+    private final LongAdder evictedTasks = new LongAdder();
+    private volatile ObjectName mBeanName = null;
     private final Object poolPauseLock = new Object();
     private volatile boolean isShutDown = false;
     private volatile boolean isPaused = false;
-    private static final int HIGHEST_PRIORITY = Priority.HIGH.getValue() + 1;
-    private static final int LOWEST_PRIORITY = Priority.LOW.getValue() - 1 ;
 
 
     public ThreadPool() {
@@ -21,34 +62,94 @@ public class ThreadPool implements Executor {
     }
 
     public ThreadPool(int nThreads) {
+        this(nThreads, ExecutionMode.SHARED_QUEUE);
+    }
+
+    public ThreadPool(int nThreads, ExecutionMode executionMode) {
+        this(nThreads, executionMode, WaitablePQueue.UNBOUNDED, RejectionPolicy.BLOCK);
+    }
+
+    //queueCapacity bounds the shared queue. the policy decides what happens to a new task when the queue is full.
+    //(the local deques of the work stealing mode are not bounded - they only hold tasks submitted by the workers)
+    public ThreadPool(int nThreads, ExecutionMode executionMode, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        if (executionMode == null) {
+            throw new IllegalArgumentException("Invalid execution mode");
+        }
+        if (rejectionPolicy == null) {
+            throw new IllegalArgumentException("Invalid rejection policy");
+        }
+        this.executionMode = executionMode;
+        this.rejectionPolicy = rejectionPolicy;
+        for (int i = 0; i < priorityStats.length; ++i) {
+            priorityStats[i] = new PriorityStats();
+        }
+        taskQueue = new WaitablePQueue<>(HIGHEST_PRIORITY + 1, task -> task.priority, queueCapacity);
         currentNumberOfThreads = new AtomicInteger(0);
         //create and start n running Threads
         for (int i = 0; i < nThreads; ++i) {
-            Worker worker = new Worker();
-            worker.start();
+            startWorker();
         }
     }
 
 
     private final class Worker extends Thread {
+        //only used in work stealing mode
+        private final WorkStealingDeque<Task<?>> localDeque = new WorkStealingDeque<>(HIGHEST_PRIORITY + 1, task -> task.priority);
+        //only used in shared queue mode with a dequeue batch size above 1: tasks taken from the queue, in dequeue order
+        private final Deque<Task<?>> taskBatch = new ArrayDeque<>();
+        private volatile boolean isRunningTask = false;
+        private final long creationTime = System.nanoTime();
+        private volatile long busyNanos = 0;    //written by the worker only
+        private volatile long startedTasks = 0; //written by the worker only
+        //the previous CPU time sample of isStalledInTask. guarded by the worker
+        private long sampledTask = -1;
+        private long sampledWallTime = 0;
+        private long sampledCpuTime = 0;
+        private boolean isStalled = false;
+
         @Override
         public void run() {
-            //each created threads increases the current thread counter
-            currentNumberOfThreads.incrementAndGet();
+            workers.add(this);
             boolean isTaskPoison = false;
             try {
                 while (!isTaskPoison) {
                     //dequeues a task from the queue. waits if no tasks are available to dequeue (blocking)
-                    Task<?> task = taskQueue.dequeue();
+                    Task<?> task = (executionMode == ExecutionMode.WORK_STEALING) ? nextTaskWorkStealing() : nextTaskSharedQueue();
+                    //cancelled tasks are left in the queue and skipped here (lazy cancellation)
+                    if (!task.tryStart()) {
+                        cancelledTasks.increment();
+                        continue;
+                    }
                     //set the poison flag to true if the task is supposed to kill the thread
                     isTaskPoison = task.isPoison;
                     //run the current task (blocking)
-                    task.executeTask();
+                    ++startedTasks;
+                    isRunningTask = true;
+                    try {
+                        long runTime = executeStartedTask(task);
+                        if (statsOf(task) != null) {
+                            busyNanos += runTime;
+                        }
+                    } finally {
+                        isRunningTask = false;
+                        //the pool stops its workers with pills, never with interrupts: an interrupt a task left
+                        //behind (or one that came in late) must not break the wait for the next task
+                        Thread.interrupted();
+                    }
                 }
             } finally {
+                workers.remove(this);
+                //hand over the tasks that are left in the local deque to the remaining workers
+                localDeque.drain(taskQueue::forceEnqueue);
+                taskBatch.forEach(taskQueue::forceEnqueue);
                 //thread was killed: decrease number of current threads
                 synchronized (poolPauseLock) {
                     currentNumberOfThreads.decrementAndGet();
+                    if (!isTaskPoison && !isShutDown) {
+                        //the worker died without a pill (tasks can't throw out of executeTask, so something in the
+                        //pool itself failed): replace it, so the pool doesn't shrink silently
+                        startWorker();
+                    }
                     //notify any threads waiting for awaitTermination
                     if (currentNumberOfThreads.get() == 0) {
                         poolPauseLock.notifyAll();
@@ -56,49 +157,408 @@ public class ThreadPool implements Executor {
                 }
             }
         }
+
+        //when batching, take up to dequeueBatchSize tasks from the queue at once and run them in order. a task that
+        //arrives later with a higher priority than the next task of the batch still goes first
+        private Task<?> nextTaskSharedQueue() {
+            Task<?> nextBatchTask = taskBatch.peekFirst();
+            if (nextBatchTask == null) {
+                Task<?> task = taskQueue.dequeue();
+                int batchSize = dequeueBatchSize;
+                if (batchSize > 1 && !isControlTask(task)) {
+                    taskQueue.drainTo(taskBatch, batchSize - 1);
+                    returnControlTasks();
+                }
+                return task;
+            }
+
+            Task<?> sharedHead = taskQueue.peek();
+            if (sharedHead != null && sharedHead.priority > nextBatchTask.priority) {
+                Task<?> task = taskQueue.poll();
+                if (task != null) {
+                    return task;
+                }
+            }
+            return taskBatch.pollFirst();
+        }
+
+
+        //every pill must reach a different worker, so pills never stay in a batch
+        private void returnControlTasks() {
+            if (taskBatch.isEmpty()) {
+                return;
+            }
+            List<Task<?>> controlTasks = null;
+            for (Task<?> task : taskBatch) {
+                if (isControlTask(task)) {
+                    if (controlTasks == null) {
+                        controlTasks = new ArrayList<>();
+                    }
+                    controlTasks.add(task);
+                }
+            }
+            if (controlTasks != null) {
+                for (Task<?> task : controlTasks) {
+                    taskBatch.remove(task);
+                    taskQueue.forceEnqueue(task);
+                }
+            }
+        }
+
+
+        //take the highest priority task out of the local deque and the shared queue, otherwise steal one.
+        //if there is nothing to steal, wait on the shared queue
+        private Task<?> nextTaskWorkStealing() {
+            while (true) {
+                int localLevel = localDeque.highestLevel();
+                Task<?> sharedHead = taskQueue.peek();
+                if (sharedHead != null && sharedHead.priority > localLevel) {
+                    Task<?> task = taskQueue.poll();
+                    if (task != null) {
+                        return task;
+                    }
+                }
+                Task<?> task = localDeque.pop();
+                if (task != null) {
+                    return task;
+                }
+                task = stealFromOtherWorkers();
+                if (task != null) {
+                    return task;
+                }
+
+                //nothing to do: wait for a new task on the shared queue, and retry stealing every once in a while
+                idleWorkers.incrementAndGet();
+                try {
+                    task = taskQueue.dequeue(IDLE_STEAL_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                } finally {
+                    idleWorkers.decrementAndGet();
+                }
+                if (task != null) {
+                    return task;
+                }
+                //an interrupted wait returns right away - clear the interrupt, or the loop spins
+                Thread.interrupted();
+            }
+        }
+
+
+        //steal from the worker whose local deque has the highest priority task
+        private Task<?> stealFromOtherWorkers() {
+            Worker victim = null;
+            int victimLevel = -1;
+            for (Worker worker : workers) {
+                int level = worker.localDeque.highestLevel();
+                if (worker != this && level > victimLevel) {
+                    victim = worker;
+                    victimLevel = level;
+                }
+            }
+            return (victim == null) ? null : victim.localDeque.steal();
+        }
+
+
+        private ThreadPool getPool() {
+            return ThreadPool.this;
+        }
+
+
+        private double getUtilization() {
+            long lifetime = System.nanoTime() - creationTime;
+            return (lifetime <= 0) ? 0 : Math.min(1.0, (double) busyNanos / lifetime);
+        }
+
+
+        //a worker is blocked if it's in the middle of a task, but not running on a CPU (I/O, locks, sleep...)
+        private boolean isBlockedInTask() {
+            if (!isRunningTask) {
+                return false;
+            }
+            State state = getState();
+            if (state == State.BLOCKED || state == State.WAITING || state == State.TIMED_WAITING) {
+                return true;
+            }
+            return state == State.RUNNABLE && isStalledInTask();
+        }
+
+
+        //a thread that waits in a socket read (JDBC...) or any other native call is still RUNNABLE, so its CPU time is
+        //compared to the wall time since the previous sample of the same task. the first sample of a task can't
+        //tell. a shorter window than the minimum keeps the previous answer, so frequent callers don't see noise
+        private synchronized boolean isStalledInTask() {
+            if (!IS_THREAD_CPU_TIME_SUPPORTED) {
+                return false;
+            }
+            long task = startedTasks;
+            long wallTime = System.nanoTime();
+            if (task == sampledTask && wallTime - sampledWallTime < MIN_CPU_SAMPLE_WINDOW_NANOS) {
+                return isStalled;
+            }
+            long cpuTime = THREAD_MX_BEAN.getThreadCpuTime(getId());
+            isStalled = task == sampledTask && cpuTime >= 0
+                    && cpuTime - sampledCpuTime < (wallTime - sampledWallTime) * BLOCKED_CPU_FRACTION;
+            sampledTask = task;
+            sampledWallTime = wallTime;
+            sampledCpuTime = cpuTime;
+            return isStalled;
+        }
     }   //end of Worker class
 
 
+    //runs a task that was already claimed with tryStart, and records its statistics. returns its run time
+    private long executeStartedTask(Task<?> task) {
+        PriorityStats stats = statsOf(task);
+        long startTime = System.nanoTime();
+        if (stats != null) {
+            stats.startedTasks.increment();
+            stats.queueWaitNanos.add(startTime - task.enqueueTime);
+        }
+        task.executeTask();
+        long runTime = System.nanoTime() - startTime;
+
+        if (stats != null) {
+            stats.runNanos.add(runTime);
+            if (task.state == Task.FAILED) {
+                stats.failedTasks.increment();
+            } else {
+                stats.completedTasks.increment();
+            }
+        }
+        return runTime;
+    }
+
+
+    //null for control tasks
+    private PriorityStats statsOf(Task<?> task) {
+        int priorityIndex = Priority.values().length - task.priority;
+        return (priorityIndex >= 0 && priorityIndex < priorityStats.length) ? priorityStats[priorityIndex] : null;
+    }
+
+
+    private RejectedExecutionException reject(String message) {
+        rejectedTasks.increment();
+        return new RejectedExecutionException(message);
+    }
+
+
+    private static boolean isControlTask(Task<?> task) {
+        return task.isPoison || task.priority == HIGHEST_PRIORITY;
+    }
+
+
+    private void startWorker() {
+        //count the thread before it starts, so a shutdown right after creation sends a pill to every thread
+        currentNumberOfThreads.incrementAndGet();
+        Worker worker = new Worker();
+        worker.start();
+    }
+
+
+    //fire-and-forget: no Future is handed out, so the task node is the only allocation
     @Override
     public void execute(Runnable runnable) {
-        submit(runnable);
+        execute(runnable, Priority.MEDIUM);
+    }
+
+    @Override
+    public void execute(Runnable command, Priority p) {
+        submitTask(new Task<>(command, null, levelOf(p)));
     }
 
 
-    public Future<?> submit(Runnable command) {
-        Callable<Object> callableWrapper = Executors.callable(command);
-        return submit(callableWrapper, Priority.MEDIUM);
+    //in shared queue mode as much of the burst as there is space for is inserted into the queue at once - a single
+    //reservation and a single wake-up - instead of one queue round trip per command. the rest go through the
+    //rejection policy one by one (local deques in work stealing mode work per task too)
+    @Override
+    public int executeAll(List<? extends Runnable> commands, Priority p) {
+        if (isShutDown) {
+            rejectedTasks.add(commands.size());
+            return 0;
+        }
+        List<Task<?>> tasks = new ArrayList<>(commands.size());
+        for (Runnable command : commands) {
+            tasks.add(new Task<>(command, null, levelOf(p)));
+        }
+        int numOfQueued = (executionMode == ExecutionMode.SHARED_QUEUE) ? taskQueue.offerAll(tasks) : 0;
+        for (int i = numOfQueued; i < tasks.size(); ++i) {
+            try {
+                enqueueTask(tasks.get(i));
+            } catch (RejectedExecutionException e) {
+                //the rest are rejected too, so the burst stays in order
+                rejectedTasks.add(tasks.size() - i - 1);
+                return i;
+            }
+        }
+        return tasks.size();
+    }
 
+
+    public Future<?> submit(Runnable command) {
+        return submit(command, Priority.MEDIUM);
     }
 
+    @Override
     public Future<?> submit(Runnable command, Priority p) {
-        Callable<Object> callableWrapper = Executors.callable(command);
-        return submit(callableWrapper, p);
+        return submit(command, p, null);
     }
 
     public <T> Future<T> submit(Runnable command, Priority p, T value) {
-        Callable<T> callableWrapper = Executors.callable(command, value);
-        return submit(callableWrapper, p);
+        return submitTask(new Task<>(command, value, levelOf(p)));
     }
 
     public <T> Future<T> submit(Callable<T> command) {
         return submit(command, Priority.MEDIUM);
     }
 
+    @Override
     public <T> Future<T> submit(Callable<T> command, Priority p) {
-        if(command == null) {
-            throw new NullPointerException();
+        return submitTask(new Task<>(command, levelOf(p)));
+    }
+
+
+    //delayed and periodic execution: when a task is due, the timing wheel's thread puts it in the queue with its priority
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return schedule(command, delay, unit, Priority.MEDIUM);
+    }
+
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit, Priority p) {
+        return scheduleTask(new ScheduledTask<>(new Task<>(command, null, levelOf(p)), null, 0), delay, unit);
+    }
+
+    public <V> ScheduledFuture<V> schedule(Callable<V> command, long delay, TimeUnit unit) {
+        return schedule(command, delay, unit, Priority.MEDIUM);
+    }
+
+    public <V> ScheduledFuture<V> schedule(Callable<V> command, long delay, TimeUnit unit, Priority p) {
+        return scheduleTask(new ScheduledTask<>(new Task<>(command, levelOf(p)), null, 0), delay, unit);
+    }
+
+    //runs every period from the initial delay on, whatever the previous run took. runs never overlap: a run that is
+    //late makes the next one start right after it. stops when cancelled, or when a run throws
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        return scheduleAtFixedRate(command, initialDelay, period, unit, Priority.MEDIUM);
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit, Priority p) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
         }
+        //the task is only the handle of the periodic runs - it's never executed itself
+        return scheduleTask(new ScheduledTask<>(new Task<>(command, null, levelOf(p)), command, unit.toNanos(period)), initialDelay, unit);
+    }
 
+    //runs with the given delay between the end of one run and the start of the next
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        return scheduleWithFixedDelay(command, initialDelay, delay, unit, Priority.MEDIUM);
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit, Priority p) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Delay must be positive");
+        }
+        return scheduleTask(new ScheduledTask<>(new Task<>(command, null, levelOf(p)), command, -unit.toNanos(delay)), initialDelay, unit);
+    }
+
+
+    private <V> ScheduledTask<V> scheduleTask(ScheduledTask<V> scheduledTask, long delay, TimeUnit unit) {
+        if (isShutDown) {
+            throw reject("ThreadPool is shut down");
+        }
+        pendingScheduledTasks.add(scheduledTask);
+        TimingWheel wheel = getTimingWheel();
+        try {
+            wheel.schedule(scheduledTask, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        } catch (IllegalStateException e) {
+            pendingScheduledTasks.remove(scheduledTask);
+            throw reject("ThreadPool is shut down");
+        }
+        if (wheel.isStopped()) {
+            //shut down meanwhile, maybe after the pending tasks were cancelled
+            scheduledTask.cancel(false);
+        }
+        return scheduledTask;
+    }
+
+
+    private TimingWheel getTimingWheel() {
+        TimingWheel wheel = timingWheel;
+        if (wheel == null) {
+            synchronized (poolPauseLock) {
+                wheel = timingWheel;
+                if (wheel == null) {
+                    wheel = new TimingWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, "threadpool-timer");
+                    timingWheel = wheel;
+                }
+            }
+        }
+        return wheel;
+    }
+
+
+    private <T> Task<T> submitTask(Task<T> task) {
         if (isShutDown) {
             //if shutdown() was called before submit
-            throw new RejectedExecutionException("ThreadPool is shut down");
+            throw reject("ThreadPool is shut down");
+        }
+        enqueueTask(task);
+
+        return task;
+    }
+
+
+    private void enqueueTask(Task<?> task) {
+        Thread currentThread = Thread.currentThread();
+        if (executionMode == ExecutionMode.WORK_STEALING
+                && currentThread instanceof Worker && ((Worker) currentThread).getPool() == this) {
+            //task submitted from one of our workers: keep it local to that worker
+            ((Worker) currentThread).localDeque.push(task);
+            if (idleWorkers.get() > 0) {
+                //wake up an idle worker so it comes to steal the new task
+                taskQueue.forceEnqueue(createStealSignalTask(LOWEST_PRIORITY));
+            }
+            return;
+        }
+        if (!taskQueue.offer(task)) {
+            handleFullQueue(task);
         }
+    }
 
-        Task<T> task = new Task<>(command, p.getValue());
-        taskQueue.enqueue(task);
 
-        return task.getFuture();
+    private void handleFullQueue(Task<?> task) {
+        switch (rejectionPolicy) {
+            case REJECT:
+                throw reject("ThreadPool queue is full");
+            case CALLER_RUNS:
+                if (task.tryStart()) {
+                    executeStartedTask(task);
+                }
+                return;
+            case EVICT_LOWEST:
+                //never evict a task with a higher priority than the new one
+                Task<?> evictedTask;
+                while ((evictedTask = taskQueue.pollLowest(task.priority)) != null) {
+                    if (evictedTask.isPoison) {
+                        //the pool is shutting down: put the pill back and stop evicting
+                        taskQueue.forceEnqueue(evictedTask);
+                        break;
+                    }
+                    //tasks that were already cancelled just leave the queue
+                    if (evictedTask.evict()) {
+                        evictedTasks.increment();
+                    }
+                    //another producer may have taken the free slot - then evict again
+                    if (taskQueue.offer(task)) {
+                        return;
+                    }
+                }
+                //nothing to evict: reject right away rather than wait - the submitter may be a selector thread
+                throw reject("ThreadPool queue is full of tasks that can't be evicted");
+            case BLOCK:
+            default:
+                if (!taskQueue.offer(task, enqueueTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                    throw reject("ThreadPool queue is full");
+                }
+        }
     }
 
 
@@ -119,22 +579,27 @@ public class ThreadPool implements Executor {
                 if (isPaused) {
                     //if pool is currently paused - enqueue a sleeping pill for each new thread
                     Task<Void> pauseThreadTask = createSleepingPillTask(HIGHEST_PRIORITY);
-                    taskQueue.enqueue(pauseThreadTask);
+                    taskQueue.forceEnqueue(pauseThreadTask);
                 }
-                Worker worker = new Worker();
-                worker.start();
+                startWorker();
             }
         } else {
             //decrease number of threads in the pool
             for (int i = 0; i < (tmpCurrentNumberOfThreads - nThreads); ++i) {
                 //create a "poison pill" callable and wrap it in a new Task with max priority, then enqueue it
                 Task<Void> killThreadTask = createPoisonPillTask(HIGHEST_PRIORITY);
-                taskQueue.enqueue(killThreadTask);
+                taskQueue.forceEnqueue(killThreadTask);
             }
         }
     }
 
 
+    private static int levelOf(Priority p) {
+        //Priority constants are declared from the highest to the lowest
+        return Priority.values().length - p.ordinal();
+    }
+
+
     private Task<Void> createPoisonPillTask(Integer priority) {
         Callable<Void> killThreadCallable = new Callable<Void>() {
             @Override
@@ -158,14 +623,28 @@ public class ThreadPool implements Executor {
         //set isPaused flag that threads check in their sleeping pill task
         isPaused = true;
 
-        for (int i = 0; i < currentNumberOfThreads.get(); ++i) {
+        //take the number of threads once - it changes while the pills are consumed
+        int tmpCurrentNumberOfThreads = currentNumberOfThreads.get();
+        for (int i = 0; i < tmpCurrentNumberOfThreads; ++i) {
             //the sleeping pill task will have the highest priority
             Task<Void> pauseThreadTask = createSleepingPillTask(HIGHEST_PRIORITY);
-            taskQueue.enqueue(pauseThreadTask);
+            taskQueue.forceEnqueue(pauseThreadTask);
         }
     }
 
 
+    private Task<Void> createStealSignalTask(int priority) {
+        Callable<Void> stealSignalCallable = new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;    //do nothing - the worker looks for tasks to steal when it's done
+            }
+        };
+
+        return (new Task<>(stealSignalCallable, priority));
+    }
+
+
     private Task<Void> createSleepingPillTask(int priority) {
         Callable<Void> pauseThreadCallable = new Callable<Void>() {
             @Override
@@ -197,15 +676,27 @@ public class ThreadPool implements Executor {
     }
 
 
+    @Override
     public void shutdown() {
         //set shutdown flag to true so client can't add any tasks to the task queue
         isShutDown = true;
+        //scheduled tasks that are not due yet are cancelled (so their get() doesn't wait forever), and periodic
+        //tasks stop
+        TimingWheel wheel = timingWheel;
+        if (wheel != null) {
+            wheel.stop();
+        }
+        for (ScheduledTask<?> scheduledTask : pendingScheduledTasks) {
+            scheduledTask.cancel(false);
+        }
+        unregisterMBean();
 
         //create and enqueue a poison pill task for each thread
-        for (int i = 0; i < (currentNumberOfThreads.get()); ++i) {
+        int tmpCurrentNumberOfThreads = currentNumberOfThreads.get();
+        for (int i = 0; i < tmpCurrentNumberOfThreads; ++i) {
             //create a "poison pill" callable and wrap it in a new Task with the lowest priority, then enqueue it
             Task<Void> killThreadTask = createPoisonPillTask(LOWEST_PRIORITY);
-            taskQueue.enqueue(killThreadTask);
+            taskQueue.forceEnqueue(killThreadTask);
         }
     }
 
@@ -214,6 +705,7 @@ public class ThreadPool implements Executor {
     }
 
 
+    @Override
     public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
         //calculate timeout deadline and remaining time to wait
         long remainingTimeToWait = unit.toMillis(timeout);
@@ -232,131 +724,514 @@ public class ThreadPool implements Executor {
         return true;
     }
 
-    //temporary helper method for JUnit tests - should be removed!
+    //publish the pool's statistics over JMX as threadpool:type=ThreadPool,name=<name>
+    public void registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("threadpool:type=ThreadPool,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            mBeanName = objectName;
+        } catch (JMException e) {
+            throw new RuntimeException("Couldn't register the thread pool MBean", e);
+        }
+    }
+
+    private void unregisterMBean() {
+        ObjectName objectName = mBeanName;
+        if (objectName == null) {
+            return;
+        }
+        mBeanName = null;
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mBeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new RuntimeException("Couldn't unregister the thread pool MBean", e);
+        }
+    }
+
+
+    @Override
     public int getCurrentNumberOfThreads() {
         return currentNumberOfThreads.get();
     }
 
+    @Override
+    public boolean isPaused() {
+        return isPaused;
+    }
 
-    private class Task<T> implements Comparable<Task<T>> {
-        private final Callable<T> callable;
-        private final Future<T> future;
-        private final int priority;
-        private T result = null;
-        private final Semaphore isDoneSemaphore = new Semaphore(0);
-        private Exception callableExceptionStatus = null;
-        private boolean isDone = false;
-        private boolean isCancelled = false;
-        public volatile boolean isPoison = false;
+    @Override
+    public int getQueueSize() {
+        return taskQueue.size();
+    }
 
+    public int getQueueSize(Priority p) {
+        return taskQueue.sizeOfLevel(levelOf(p));
+    }
 
-        public Task(Callable<T> callable, int priority) {
-            this.callable = callable;
-            this.priority = priority;
-            this.future = new TaskFuture();
+    @Override
+    public int getQueuedHighPriorityTasks() {
+        return getQueueSize(Priority.HIGH);
+    }
+
+    @Override
+    public int getQueuedMediumPriorityTasks() {
+        return getQueueSize(Priority.MEDIUM);
+    }
+
+    @Override
+    public int getQueuedLowPriorityTasks() {
+        return getQueueSize(Priority.LOW);
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return taskQueue.getCapacity();
+    }
+
+    public RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    //a queued task is promoted by one priority level for every agingInterval it has been waiting, up to HIGH, so
+    //LOW tasks can't starve under a constant load of higher priority tasks. control tasks are not affected
+    public void setPriorityAging(long agingInterval, TimeUnit unit) {
+        taskQueue.setAging(task -> task.enqueueTime, levelOf(Priority.HIGH), agingInterval, unit);
+    }
+
+    public void disablePriorityAging() {
+        taskQueue.disableAging();
+    }
+
+    //how idle workers wait for a task. spinning cuts the wake-up latency of a new task from an OS wake-up to
+    //well under a microsecond, but every idle worker keeps a core busy - size the pool accordingly
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        taskQueue.setWaitStrategy(waitStrategy);
+    }
+
+    //shared queue mode: the maximum number of tasks a worker takes out of the queue at once. batching takes the
+    //queue's semaphore once per batch instead of once per task, but the tasks of a batch can't go to other workers
+    public void setDequeueBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
         }
+        dequeueBatchSize = batchSize;
+    }
 
+    //how long BLOCK waits for space before rejecting a task
+    public void setEnqueueTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Enqueue timeout cannot be negative");
+        }
+        enqueueTimeoutNanos = unit.toNanos(timeout);
+    }
 
-        private void executeTask() {
-            try {
-                result = callable.call();   //execute the command
-                isDone = true;  //set isDone flag, which is checked in Future.get() method
-            } catch (Exception e) {
-                this.callableExceptionStatus = e; //if call() threw an exception, catch it and save it for Future.get(), then continue to next task
-            } finally {
-                isDoneSemaphore.release();  //release semaphore for Future.get() method
+    //number of workers that are in the middle of a task
+    @Override
+    public int getRunningWorkerCount() {
+        int runningWorkers = 0;
+        for (Worker worker : workers) {
+            if (worker.isRunningTask) {
+                ++runningWorkers;
+            }
+        }
+        return runningWorkers;
+    }
+
+    //number of workers that are in the middle of a task but blocked (waiting on I/O, a lock, a sleep...)
+    @Override
+    public int getBlockedWorkerCount() {
+        int blockedWorkers = 0;
+        for (Worker worker : workers) {
+            if (worker.isBlockedInTask()) {
+                ++blockedWorkers;
             }
         }
+        return blockedWorkers;
+    }
 
+    //number of tasks that left the queue and started running so far
+    @Override
+    public long getStartedTaskCount() {
+        long startedTasks = 0;
+        for (PriorityStats stats : priorityStats) {
+            startedTasks += stats.startedTasks.sum();
+        }
+        return startedTasks;
+    }
 
-        @Override
-        public int compareTo(Task<T> other) {
-            return other.priority - this.priority;
+    public long getStartedTaskCount(Priority p) {
+        return priorityStats[p.ordinal()].startedTasks.sum();
+    }
+
+    @Override
+    public long getCompletedTaskCount() {
+        long completedTasks = 0;
+        for (PriorityStats stats : priorityStats) {
+            completedTasks += stats.completedTasks.sum();
+        }
+        return completedTasks;
+    }
+
+    @Override
+    public long getFailedTaskCount() {
+        long failedTasks = 0;
+        for (PriorityStats stats : priorityStats) {
+            failedTasks += stats.failedTasks.sum();
         }
+        return failedTasks;
+    }
+
+    //cancelled tasks that were skipped by the workers (evicted tasks are counted separately)
+    @Override
+    public long getCancelledTaskCount() {
+        return cancelledTasks.sum();
+    }
+
+    @Override
+    public long getRejectedTaskCount() {
+        return rejectedTasks.sum();
+    }
 
+    @Override
+    public long getEvictedTaskCount() {
+        return evictedTasks.sum();
+    }
 
-        private Future<T> getFuture() {
-            return future;
+    //sum of the time all started tasks spent in the queue, in nanoseconds
+    @Override
+    public long getTotalQueueWaitNanos() {
+        long queueWaitNanos = 0;
+        for (PriorityStats stats : priorityStats) {
+            queueWaitNanos += stats.queueWaitNanos.sum();
         }
+        return queueWaitNanos;
+    }
 
+    public long getTotalQueueWaitNanos(Priority p) {
+        return priorityStats[p.ordinal()].queueWaitNanos.sum();
+    }
 
-        private class TaskFuture implements Future<T> {
+    //sum of the run time of all finished tasks, in nanoseconds
+    @Override
+    public long getTotalRunNanos() {
+        long runNanos = 0;
+        for (PriorityStats stats : priorityStats) {
+            runNanos += stats.runNanos.sum();
+        }
+        return runNanos;
+    }
 
-            @Override
-            public boolean cancel(boolean ignoredArgument) {
-                //check if task is already complete or cancelled before
-                if (isDone || isCancelled) {
-                    return false;
+    public long getTotalRunNanos(Priority p) {
+        return priorityStats[p.ordinal()].runNanos.sum();
+    }
+
+    @Override
+    public double getAverageQueueWaitNanos() {
+        long startedTasks = getStartedTaskCount();
+        return (startedTasks == 0) ? 0 : (double) getTotalQueueWaitNanos() / startedTasks;
+    }
+
+    @Override
+    public double getAverageRunNanos() {
+        long startedTasks = getStartedTaskCount();
+        return (startedTasks == 0) ? 0 : (double) getTotalRunNanos() / startedTasks;
+    }
+
+    @Override
+    public double getUtilization() {
+        double utilization = 0;
+        int numOfWorkers = 0;
+        for (Worker worker : workers) {
+            utilization += worker.getUtilization();
+            ++numOfWorkers;
+        }
+        return (numOfWorkers == 0) ? 0 : utilization / numOfWorkers;
+    }
+
+    //busy ratio of every current worker (the idle ratio is 1 minus it)
+    @Override
+    public double[] getWorkerUtilizations() {
+        return workers.stream().mapToDouble(Worker::getUtilization).toArray();
+    }
+
+
+    private static final class PriorityStats {
+        private final LongAdder startedTasks = new LongAdder();
+        private final LongAdder completedTasks = new LongAdder();
+        private final LongAdder failedTasks = new LongAdder();
+        private final LongAdder queueWaitNanos = new LongAdder();
+        private final LongAdder runNanos = new LongAdder();
+    }
+
+
+    //a queued task, which is also its own Future. all the task's state is one atomic int, so a task costs one small
+    //object. waiters for get() block on the task's monitor, which is only touched when there are waiters
+    private static class Task<T> implements Future<T> {
+        private static final int NEW = 0;
+        private static final int STARTED = 1;
+        private static final int COMPLETED = 2;
+        private static final int FAILED = 3;
+        private static final int CANCELLED = 4;
+        private static final AtomicIntegerFieldUpdater<Task<?>> STATE = newStateUpdater();
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static AtomicIntegerFieldUpdater<Task<?>> newStateUpdater() {
+            return (AtomicIntegerFieldUpdater) AtomicIntegerFieldUpdater.newUpdater(Task.class, "state");
+        }
+
+        //exactly one of callable and runnable is set
+        private final Callable<T> callable;
+        private final Runnable runnable;
+        private final int priority;
+        private volatile int state = NEW;
+        private volatile boolean hasWaiters = false;
+        //set again when a scheduled task is handed to the queue, so the delay doesn't count as waiting (or aging)
+        private long enqueueTime = System.nanoTime();
+        //the result, or the exception thrown by the task. published by the write to state
+        private Object outcome;
+        private boolean isPoison = false;
+
+
+        private Task(Callable<T> callable, int priority) {
+            if (callable == null) {
+                throw new NullPointerException();
+            }
+            this.callable = callable;
+            this.runnable = null;
+            this.priority = priority;
+        }
+
+        private Task(Runnable runnable, T result, int priority) {
+            if (runnable == null) {
+                throw new NullPointerException();
+            }
+            this.callable = null;
+            this.runnable = runnable;
+            this.outcome = result;
+            this.priority = priority;
+        }
+
+
+        //claim the task for execution. fails if the task was cancelled while in the queue
+        private boolean tryStart() {
+            return STATE.compareAndSet(this, NEW, STARTED);
+        }
+
+
+        private void executeTask() {
+            try {
+                if (callable != null) {
+                    outcome = callable.call();  //execute the command
+                } else {
+                    runnable.run();
                 }
-                //try to remove task from queue
-                boolean removed = ThreadPool.this.taskQueue.remove(Task.this);
-                //set isCancelled to "true" only if it was actually removed
-                if (removed) {
-                    isCancelled = true;
+                complete(COMPLETED);
+            } catch (Throwable e) {
+                //if the task threw (an Error too, e.g. a LinkageError of a plugin class), save it for Future.get(),
+                //then continue to next task
+                outcome = e;
+                complete(FAILED);
+            }
+        }
+
+
+        private void complete(int finalState) {
+            state = finalState;
+            //only lock the monitor if someone is waiting in get()
+            if (hasWaiters) {
+                synchronized (this) {
+                    notifyAll();
                 }
-                //after cancel() - isDone() will always be true, no matter at what stage of execution
-                isDone = true;
+            }
+        }
+
 
-                return removed;
+        //fail a task that is not executed itself (the handle of a periodic task)
+        private void fail(Throwable e) {
+            if (STATE.compareAndSet(this, NEW, STARTED)) {
+                outcome = e;
+                complete(FAILED);
             }
+        }
 
 
-            @Override
-            public boolean isCancelled() {
-                return isCancelled;
+        //cancel the task because a full queue made room for a more important one, and tell its command about it
+        private boolean evict() {
+            if (!cancel(false)) {
+                return false;
             }
+            Object command = (callable != null) ? callable : runnable;
+            if (command instanceof Evictable) {
+                ((Evictable) command).onEvicted();
+            }
+            return true;
+        }
 
-            @Override
-            public boolean isDone() {
-                return isDone;
+
+        @Override
+        public boolean cancel(boolean ignoredArgument) {
+            //only tasks that didn't start yet can be cancelled. the worker that dequeues it will skip it
+            if (!STATE.compareAndSet(this, NEW, CANCELLED)) {
+                return false;
             }
+            outcome = null;
+            complete(CANCELLED);
+            return true;
+        }
 
+        @Override
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
 
-            @Override
-            public T get() throws InterruptedException, ExecutionException {
-                //re-use the get() method which receives time limit arguments, allow endless time limit
-                try {
-                    return get(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-                } catch (TimeoutException e) {
-                    //should not happen!
-                    throw new RuntimeException("Timed out on get()");
+        @Override
+        public boolean isDone() {
+            return state >= COMPLETED;
+        }
+
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            if (state < COMPLETED) {
+                synchronized (this) {
+                    hasWaiters = true;
+                    while (state < COMPLETED) {
+                        wait();
+                    }
                 }
             }
+            return report();
+        }
 
 
-            @Override
-            public T get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
-                //if Task.executeTask() resulted in an exception
-                if (Task.this.callableExceptionStatus != null) {
-                    throw new ExecutionException(callableExceptionStatus);
+        @Override
+        public T get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (state < COMPLETED) {
+                long timeoutNanos = timeUnit.toNanos(timeout);
+                long startTime = System.nanoTime();
+                synchronized (this) {
+                    hasWaiters = true;
+                    while (state < COMPLETED) {
+                        long remainingTimeToWait = timeoutNanos - (System.nanoTime() - startTime);
+                        if (remainingTimeToWait <= 0) {
+                            throw new TimeoutException();
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remainingTimeToWait);
+                    }
                 }
+            }
+            return report();
+        }
+
 
-                //if the task was cancelled using Future.cancel()
-                if (isCancelled) {
+        @SuppressWarnings("unchecked")
+        private T report() throws ExecutionException {
+            switch (state) {
+                case FAILED:
+                    throw new ExecutionException((Throwable) outcome);
+                case CANCELLED:
                     throw new CancellationException();
-                }
+                default:
+                    return (T) outcome;
+            }
+        }
+    }
 
-                //if the task is done, return the result
-                if (Task.this.isDone) {
-                    return Task.this.result;
-                } else {
-                    //if the task is not done yet, wait for the semaphore token (executeTask() releases it when done)
-                    if (isDoneSemaphore.tryAcquire(l, timeUnit) == true) {
-                        //check if cancellation or exception status changed while waiting
-                        if (Task.this.callableExceptionStatus != null) {
-                            throw new ExecutionException(callableExceptionStatus);
-                        }
-                        if (isCancelled) {
-                            throw new CancellationException();
-                        }
 
-                        return Task.this.result;
-                    } else {
-                        //if semaphore timed out
-                        throw new TimeoutException();
-                    }
+    //a delayed or periodic task in the timing wheel. the one-shot kind hands its Task to the queue when it's due, and
+    //the Task is also the Future. the periodic kind hands a new Task to the queue for every run, and its Task only
+    //serves as the Future (cancelled by the user, or failed by a run that threw)
+    private final class ScheduledTask<V> extends TimingWheel.Timeout implements ScheduledFuture<V> {
+        private final Task<V> task;
+        private final Runnable periodicCommand;
+        //0: one-shot, positive: fixed rate, negative: fixed delay
+        private final long periodNanos;
+
+        private ScheduledTask(Task<V> task, Runnable periodicCommand, long periodNanos) {
+            this.task = task;
+            this.periodicCommand = periodicCommand;
+            this.periodNanos = periodNanos;
+        }
+
+        //runs on the timing wheel's thread
+        @Override
+        void expire() {
+            if (task.isDone()) {
+                pendingScheduledTasks.remove(this);
+                return;
+            }
+            Task<?> dueTask = (periodNanos == 0) ? task : new Task<>(this::runPeriodically, null, task.priority);
+            dueTask.enqueueTime = System.nanoTime();
+            if (!taskQueue.offer(dueTask)) {
+                //never block the wheel: try again on the next tick
+                timingWheel.schedule(this, System.nanoTime());
+                return;
+            }
+            if (periodNanos == 0) {
+                pendingScheduledTasks.remove(this);
+                if (timingWheel.isStopped()) {
+                    //the shutdown may have missed it, and its pills may be ahead of it: don't let get() wait forever
+                    task.cancel(false);
                 }
             }
-        }   //end of TaskFuture class
+        }
+
+        private void runPeriodically() {
+            if (task.isDone()) {
+                return;
+            }
+            try {
+                periodicCommand.run();
+            } catch (Throwable e) {
+                task.fail(e);
+                pendingScheduledTasks.remove(this);
+                return;
+            }
+            if (task.isDone() || isShutDown) {
+                return;
+            }
+            long nextDeadline = (periodNanos > 0) ? getDeadline() + periodNanos : System.nanoTime() - periodNanos;
+            timingWheel.schedule(this, nextDeadline);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean isCancelled = task.cancel(mayInterruptIfRunning);
+            //drop it from the wheel right away, so cancelled timeouts don't pile up until their deadline
+            cancelTimeout();
+            pendingScheduledTasks.remove(this);
+            return isCancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return task.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return task.isDone();
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            return task.get();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return task.get(timeout, unit);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(getDeadline() - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
     }
 }
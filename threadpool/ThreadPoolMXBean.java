@@ -0,0 +1,48 @@
+package threadpool;
+
+//the ThreadPool's statistics as seen over JMX (see ThreadPool.registerMBean). times are in nanoseconds, counts are
+//totals since the pool was created. control tasks (pause and poison pills) are not counted
+public interface ThreadPoolMXBean {
+    int getCurrentNumberOfThreads();
+
+    boolean isPaused();
+
+    int getQueueSize();
+
+    int getQueueCapacity();
+
+    int getQueuedHighPriorityTasks();
+
+    int getQueuedMediumPriorityTasks();
+
+    int getQueuedLowPriorityTasks();
+
+    int getRunningWorkerCount();
+
+    int getBlockedWorkerCount();
+
+    long getStartedTaskCount();
+
+    long getCompletedTaskCount();
+
+    long getFailedTaskCount();
+
+    long getCancelledTaskCount();
+
+    long getRejectedTaskCount();
+
+    long getEvictedTaskCount();
+
+    long getTotalQueueWaitNanos();
+
+    long getTotalRunNanos();
+
+    double getAverageQueueWaitNanos();
+
+    double getAverageRunNanos();
+
+    //fraction of their lifetime the current workers spent running tasks
+    double getUtilization();
+
+    double[] getWorkerUtilizations();
+}
@@ -0,0 +1,219 @@
+package threadpool;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+//hierarchical timing wheel: LEVELS wheels of SLOTS buckets each. a bucket of level L spans SLOTS^L ticks, so level 0
+//holds the timeouts of the next SLOTS ticks, and every level above covers SLOTS times longer. when the lower wheel
+//wraps around, the next bucket of the wheel above is cascaded down (its timeouts are spread over the lower levels).
+//schedule and cancel are O(1): other threads only add the timeout to a lock-free queue, and the wheel's own thread
+//links it into (or unlinks it from) its bucket's doubly linked list on the next tick. so the wheel itself needs no
+//locks, and a cancelled timeout is gone from the wheel (and can be collected) within one tick
+class TimingWheel implements Runnable {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 6;    //64^6 ticks: over two years with 1ms ticks, over 20 with the pool's 10ms ticks
+
+    private final Timeout[][] bucketHeads = new Timeout[LEVELS][SLOTS];
+    private final long tickNanos;
+    private final long startTime = System.nanoTime();
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final Thread wheelThread;
+    private volatile boolean isRunning = true;
+    private long currentTick = 0;   //wheel thread only: the next tick to process
+
+
+    TimingWheel(long tick, TimeUnit unit, String threadName) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive");
+        }
+        this.tickNanos = unit.toNanos(tick);
+        wheelThread = new Thread(this, threadName);
+        wheelThread.setDaemon(true);
+        wheelThread.start();
+    }
+
+
+    //any thread. the timeout expires (on the wheel's thread) at the first tick at or after its deadline
+    void schedule(Timeout timeout, long deadlineNanos) {
+        if (!isRunning) {
+            throw new IllegalStateException("Timing wheel is stopped");
+        }
+        timeout.wheel = this;
+        timeout.deadline = deadlineNanos;
+        timeout.state = Timeout.PENDING;
+        newTimeouts.add(timeout);
+    }
+
+    void stop() {
+        isRunning = false;
+        LockSupport.unpark(wheelThread);
+    }
+
+    boolean isStopped() {
+        return !isRunning;
+    }
+
+
+    @Override
+    public void run() {
+        while (isRunning) {
+            long nextTickTime = startTime + (currentTick + 1) * tickNanos;
+            long sleepNanos = nextTickTime - System.nanoTime();
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                continue;
+            }
+
+            addNewTimeouts();
+            removeCancelledTimeouts();
+            //process every tick that passed (more than one if the thread was late)
+            long lastDueTick = (System.nanoTime() - startTime) / tickNanos;
+            while (currentTick <= lastDueTick) {
+                processTick(currentTick);
+                ++currentTick;
+            }
+        }
+    }
+
+
+    private void addNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.state == Timeout.PENDING) {
+                place(timeout);
+            }
+        }
+    }
+
+    private void removeCancelledTimeouts() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            unlink(timeout);
+        }
+    }
+
+
+    private void processTick(long tick) {
+        //the lower wheel wrapped around: cascade the next bucket of each wheel above it
+        for (int level = 1; level < LEVELS && (tick & ((1L << (SLOT_BITS * level)) - 1)) == 0; ++level) {
+            int slot = (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+            Timeout timeout = bucketHeads[level][slot];
+            bucketHeads[level][slot] = null;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.prev = timeout.next = null;
+                timeout.isLinked = false;
+                if (timeout.state == Timeout.PENDING) {
+                    place(timeout);
+                }
+                timeout = next;
+            }
+        }
+
+        int slot = (int) tick & SLOT_MASK;
+        Timeout timeout = bucketHeads[0][slot];
+        bucketHeads[0][slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = timeout.next = null;
+            timeout.isLinked = false;
+            if (timeout.state != Timeout.PENDING) {
+                //cancelled while we were ticking - it's dropped here
+            } else if (timeout.expiryTick > tick) {
+                //only timeouts beyond the top level's range come around early
+                place(timeout);
+            } else if (Timeout.STATE.compareAndSet(timeout, Timeout.PENDING, Timeout.EXPIRED)) {
+                timeout.expire();
+            }
+            timeout = next;
+        }
+    }
+
+
+    private void place(Timeout timeout) {
+        //round the deadline up to a tick
+        timeout.expiryTick = Math.max(0, (timeout.deadline - startTime + tickNanos - 1) / tickNanos);
+        long expiryTick = Math.max(timeout.expiryTick, currentTick);
+        long ticksLeft = expiryTick - currentTick;
+
+        int level = 0;
+        while (level < LEVELS - 1 && ticksLeft >= (1L << (SLOT_BITS * (level + 1)))) {
+            ++level;
+        }
+        if (ticksLeft >= (1L << (SLOT_BITS * LEVELS))) {
+            //too far away for the wheel: park it in the farthest bucket, it will be placed again from there
+            expiryTick = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        }
+        int slot = (int) (expiryTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = bucketHeads[level][slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        bucketHeads[level][slot] = timeout;
+        timeout.isLinked = true;
+    }
+
+
+    private void unlink(Timeout timeout) {
+        if (!timeout.isLinked) {
+            //never placed (cancelled before the next tick), or already taken out of its bucket
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            bucketHeads[timeout.level][timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.isLinked = false;
+    }
+
+
+    //a node of the wheel. subclasses decide what happens on expiry
+    abstract static class Timeout {
+        private static final int PENDING = 0;
+        private static final int EXPIRED = 1;
+        private static final int CANCELLED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private volatile int state = EXPIRED;
+        private TimingWheel wheel;
+        private long deadline;
+        //owned by the wheel's thread
+        private long expiryTick;
+        private int level;
+        private int slot;
+        private boolean isLinked = false;
+        private Timeout prev;
+        private Timeout next;
+
+        //runs on the wheel's thread: must be short
+        abstract void expire();
+
+        //returns false if the timeout already expired (or was cancelled)
+        boolean cancelTimeout() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelledTimeouts.add(this);
+            return true;
+        }
+
+        long getDeadline() {
+            return deadline;
+        }
+    }
+}
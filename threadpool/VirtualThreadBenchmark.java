@@ -0,0 +1,68 @@
+package threadpool;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+//benchmark of the request pool for blocking commands: every task sleeps like a DB call, one in ten with HIGH priority.
+//compares a ThreadPool with a VirtualThreadExecutor (run it on Java 21+). it's not part of the server
+public class VirtualThreadBenchmark {
+    private static final int NUM_OF_TASKS = 10000;
+    private static final long BLOCKING_MILLIS = 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (!VirtualThreads.isSupported()) {
+            System.out.println("virtual threads are not supported by this JVM (Java 21+ is needed)");
+            return;
+        }
+        //the first round warms up the JIT
+        for (int round = 0; round < 2; ++round) {
+            run("ThreadPool(64)", new ThreadPool(64));
+            run("Virtual(1000)", new VirtualThreadExecutor(1000));
+        }
+    }
+
+
+    private static void run(String name, PriorityExecutor executor) throws InterruptedException {
+        long[] latencies = new long[NUM_OF_TASKS];
+        CountDownLatch doneLatch = new CountDownLatch(NUM_OF_TASKS);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < NUM_OF_TASKS; ++i) {
+            int taskIndex = i;
+            long submitTime = System.nanoTime();
+            Priority priority = (i % 10 == 0) ? Priority.HIGH : Priority.LOW;
+            executor.execute(() -> {
+                try {
+                    Thread.sleep(BLOCKING_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latencies[taskIndex] = System.nanoTime() - submitTime;
+                doneLatch.countDown();
+            }, priority);
+        }
+        doneLatch.await();
+        long totalTime = System.nanoTime() - startTime;
+
+        long[] highLatencies = new long[NUM_OF_TASKS / 10];
+        long[] lowLatencies = new long[NUM_OF_TASKS - highLatencies.length];
+        int numOfHigh = 0;
+        int numOfLow = 0;
+        for (int i = 0; i < NUM_OF_TASKS; ++i) {
+            if (i % 10 == 0) {
+                highLatencies[numOfHigh++] = latencies[i];
+            } else {
+                lowLatencies[numOfLow++] = latencies[i];
+            }
+        }
+        Arrays.sort(latencies);
+        Arrays.sort(highLatencies);
+        Arrays.sort(lowLatencies);
+        System.out.printf("%-15s total=%6dms p50=%7.1fms p99=%7.1fms HIGH p50=%7.1fms LOW p50=%7.1fms%n", name,
+                TimeUnit.NANOSECONDS.toMillis(totalTime), latencies[NUM_OF_TASKS / 2] / 1e6, latencies[NUM_OF_TASKS * 99 / 100] / 1e6,
+                highLatencies[highLatencies.length / 2] / 1e6, lowLatencies[lowLatencies.length / 2] / 1e6);
+
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+}
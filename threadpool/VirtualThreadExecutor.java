@@ -0,0 +1,178 @@
+package threadpool;
+
+import waitingqueue.WaitablePQueue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//runs every task on its own virtual thread (Java 21+), for blocking work (JDBC...) that would tie up platform threads.
+//priority is still honored: tasks wait in a WaitablePQueue, and a dispatcher thread admits the highest priority task
+//whenever one of the maxConcurrency slots is free. the slots bound the load on the resources behind the tasks
+public class VirtualThreadExecutor implements PriorityExecutor {
+    private static final int LOWEST_LEVEL = 0;  //below all the priorities: for the shutdown signal
+    private final WaitablePQueue<PrioritizedTask<?>> admissionQueue;
+    private final Semaphore freeSlots;
+    private final int maxConcurrency;
+    private final ThreadFactory threadFactory;
+    private final AtomicInteger runningTasks = new AtomicInteger(0);
+    private final CountDownLatch terminationLatch = new CountDownLatch(1);
+    private volatile PrioritizedTask<Void> shutdownSignal = null;   //only wakes the dispatcher up
+    private volatile boolean isShutDown = false;
+
+
+    public VirtualThreadExecutor(int maxConcurrency) {
+        this(maxConcurrency, WaitablePQueue.UNBOUNDED);
+    }
+
+    //a full admission queue rejects new tasks
+    public VirtualThreadExecutor(int maxConcurrency, int queueCapacity) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Max concurrency must be positive");
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.freeSlots = new Semaphore(maxConcurrency);
+        this.threadFactory = VirtualThreads.newThreadFactory("virtual-worker-");
+        admissionQueue = new WaitablePQueue<>(Priority.values().length + 1, task -> task.level, queueCapacity);
+
+        Thread dispatcherThread = new Thread(this::dispatch, "virtual-thread-dispatcher");
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+    }
+
+
+    @Override
+    public void execute(Runnable command) {
+        execute(command, Priority.MEDIUM);
+    }
+
+    @Override
+    public void execute(Runnable command, Priority p) {
+        submit(command, p);
+    }
+
+    @Override
+    public Future<?> submit(Runnable command, Priority p) {
+        return admit(new PrioritizedTask<>(Executors.callable(command, null), levelOf(p)));
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> command, Priority p) {
+        return admit(new PrioritizedTask<>(command, levelOf(p)));
+    }
+
+
+    private <T> Future<T> admit(PrioritizedTask<T> task) {
+        if (isShutDown) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+        if (!admissionQueue.offer(task)) {
+            throw new RejectedExecutionException("Executor queue is full");
+        }
+        //shutdown() may have come in between the check and the offer, and the dispatcher may have drained the queue
+        //and terminated before the task got in. cancelled, the task is not run anymore - if it already ran (or is
+        //running), the dispatcher did see it
+        if (isShutDown && task.cancel(false)) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+        return task;
+    }
+
+
+    private void dispatch() {
+        boolean isSignalReceived = false;
+        while (true) {
+            //wait for a free slot first, so the task is picked by priority only when it can actually start
+            freeSlots.acquireUninterruptibly();
+            //after the shutdown signal, the queue is drained without waiting. the signal may come out before tasks that
+            //are still queued (e.g. when aging promoted them past it), so it only ends a wait - the empty queue ends
+            //the loop
+            PrioritizedTask<?> task = isSignalReceived ? admissionQueue.poll() : admissionQueue.dequeue();
+            if (task == null) {
+                break;
+            }
+            if (task == shutdownSignal) {
+                isSignalReceived = true;
+                freeSlots.release();
+                continue;
+            }
+            if (task.isCancelled()) {
+                freeSlots.release();
+                continue;
+            }
+            runningTasks.incrementAndGet();
+            threadFactory.newThread(() -> {
+                try {
+                    task.run();
+                } finally {
+                    runningTasks.decrementAndGet();
+                    freeSlots.release();
+                }
+            }).start();
+        }
+
+        //wait for the running tasks: every slot is free again when they are all done
+        freeSlots.release();
+        freeSlots.acquireUninterruptibly(maxConcurrency);
+        terminationLatch.countDown();
+    }
+
+
+    //the queued tasks still run, then the executor terminates
+    @Override
+    public void shutdown() {
+        if (isShutDown) {
+            return;
+        }
+        isShutDown = true;
+        shutdownSignal = new PrioritizedTask<>(Executors.callable(() -> { }, null), LOWEST_LEVEL);
+        admissionQueue.forceEnqueue(shutdownSignal);
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminationLatch.await(timeout, unit);
+    }
+
+    //see ThreadPool.setPriorityAging
+    public void setPriorityAging(long agingInterval, TimeUnit unit) {
+        admissionQueue.setAging(task -> task.enqueueTime, levelOf(Priority.HIGH), agingInterval, unit);
+    }
+
+    @Override
+    public int getQueueSize() {
+        return admissionQueue.size();
+    }
+
+    public int getRunningTaskCount() {
+        return runningTasks.get();
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+
+    private static int levelOf(Priority p) {
+        //Priority constants are declared from the highest to the lowest
+        return Priority.values().length - p.ordinal();
+    }
+
+
+    private static class PrioritizedTask<T> extends FutureTask<T> {
+        private final int level;
+        private final long enqueueTime = System.nanoTime();
+
+        private PrioritizedTask(Callable<T> callable, int level) {
+            super(callable);
+            this.level = level;
+        }
+    }
+}
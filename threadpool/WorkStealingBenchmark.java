@@ -0,0 +1,92 @@
+package threadpool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//benchmark of the execution modes of ThreadPool: a fork-heavy load, where every task submits two more from its worker
+//(a binary tree of tasks), and a flat load, where all the tasks are submitted from one outside thread.
+//work stealing should win the first (the tasks stay in the workers' own deques) and pay a little on the second.
+//it's not part of the server
+public class WorkStealingBenchmark {
+    private static final int NUM_OF_WORKERS = 4;
+    private static final int TREE_DEPTH = 18;           //2^19 - 1 = 524287 tasks
+    private static final int NUM_OF_FLAT_TASKS = 500000;
+    private static final int NUM_OF_ROUNDS = 5;         //the first rounds warm up the JIT
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int round = 1; round <= NUM_OF_ROUNDS; ++round) {
+            System.out.printf("round %d%n", round);
+            for (ExecutionMode executionMode : ExecutionMode.values()) {
+                System.out.printf("  %-13s fork-heavy %5dms  flat %5dms%n", executionMode,
+                        runForkHeavy(executionMode), runFlat(executionMode));
+            }
+        }
+        //the pool threads are not daemon threads
+        System.exit(0);
+    }
+
+
+    private static long runForkHeavy(ExecutionMode executionMode) throws InterruptedException {
+        ThreadPool pool = new ThreadPool(NUM_OF_WORKERS, executionMode);
+        AtomicInteger remainingTasks = new AtomicInteger((1 << (TREE_DEPTH + 1)) - 1);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        long startTime = System.nanoTime();
+        pool.execute(new TreeTask(pool, TREE_DEPTH, remainingTasks, doneLatch), Priority.MEDIUM);
+        doneLatch.await();
+        long totalTime = System.nanoTime() - startTime;
+        shutdown(pool);
+        return TimeUnit.NANOSECONDS.toMillis(totalTime);
+    }
+
+    private static long runFlat(ExecutionMode executionMode) throws InterruptedException {
+        ThreadPool pool = new ThreadPool(NUM_OF_WORKERS, executionMode);
+        AtomicInteger remainingTasks = new AtomicInteger(NUM_OF_FLAT_TASKS);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        Runnable task = () -> {
+            if (remainingTasks.decrementAndGet() == 0) {
+                doneLatch.countDown();
+            }
+        };
+        long startTime = System.nanoTime();
+        for (int i = 0; i < NUM_OF_FLAT_TASKS; ++i) {
+            pool.execute(task, Priority.MEDIUM);
+        }
+        doneLatch.await();
+        long totalTime = System.nanoTime() - startTime;
+        shutdown(pool);
+        return TimeUnit.NANOSECONDS.toMillis(totalTime);
+    }
+
+    private static void shutdown(ThreadPool pool) throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+
+    //submits its two children from the worker that runs it
+    private static class TreeTask implements Runnable {
+        private final ThreadPool pool;
+        private final int depth;
+        private final AtomicInteger remainingTasks;
+        private final CountDownLatch doneLatch;
+
+        private TreeTask(ThreadPool pool, int depth, AtomicInteger remainingTasks, CountDownLatch doneLatch) {
+            this.pool = pool;
+            this.depth = depth;
+            this.remainingTasks = remainingTasks;
+            this.doneLatch = doneLatch;
+        }
+
+        @Override
+        public void run() {
+            if (depth > 0) {
+                pool.execute(new TreeTask(pool, depth - 1, remainingTasks, doneLatch), Priority.MEDIUM);
+                pool.execute(new TreeTask(pool, depth - 1, remainingTasks, doneLatch), Priority.MEDIUM);
+            }
+            if (remainingTasks.decrementAndGet() == 0) {
+                doneLatch.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package waitingqueue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+//a preallocated ring of mutable entries between a single producer and a fixed number of consumers (disruptor style).
+//the producer claims the next sequence, fills the entry in place and publishes it by advancing the cursor - no
+//allocation and no lock. consumers claim runs of published sequences with a CAS on a shared work sequence, so each
+//entry goes to exactly one consumer and a consumer takes a whole batch at once.
+//every consumer advertises the sequence up to which it is done (held), advancing it after each entry of its batch,
+//and the producer never wraps past the lowest one - so a slow entry only holds back the ring from itself on. an idle consumer spins for a while and then parks; the producer only unparks when somebody is parked
+public class RingBuffer<E> {
+    private static final long NOT_HOLDING = Long.MAX_VALUE;
+    private static final int SPIN_ITERATIONS = 1000;
+
+    private final Object[] entries;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong(-1);         //the last published sequence
+    private final AtomicLong workSequence = new AtomicLong(-1);   //the last sequence claimed by a consumer
+    private final AtomicLongArray heldSequences;    //per consumer: everything up to here is done
+    private final AtomicIntegerArray isParked;      //per consumer
+    private final Thread[] consumerThreads;         //written before isParked is set, read after it is seen
+    private final AtomicInteger numOfParked = new AtomicInteger(0);
+    private volatile boolean isClosed = false;
+    //producer thread only
+    private long nextSequence = -1;
+    private long cachedGatingSequence = -1;
+
+    //size must be a power of two. the factory creates the entries, which are then reused forever
+    public RingBuffer(int size, Supplier<E> entryFactory, int numOfConsumers) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two");
+        }
+        if (numOfConsumers < 1) {
+            throw new IllegalArgumentException("Number of consumers must be positive");
+        }
+        entries = new Object[size];
+        for (int i = 0; i < size; ++i) {
+            entries[i] = entryFactory.get();
+        }
+        mask = size - 1;
+        heldSequences = new AtomicLongArray(numOfConsumers);
+        for (int i = 0; i < numOfConsumers; ++i) {
+            heldSequences.set(i, NOT_HOLDING);
+        }
+        isParked = new AtomicIntegerArray(numOfConsumers);
+        consumerThreads = new Thread[numOfConsumers];
+    }
+
+
+    //producer thread only. returns the claimed sequence, or -1 if the ring is full
+    public long tryClaim() {
+        long next = nextSequence + 1;
+        long wrapPoint = next - entries.length;
+        if (wrapPoint > cachedGatingSequence) {
+            cachedGatingSequence = gatingSequence();
+            if (wrapPoint > cachedGatingSequence) {
+                return -1;
+            }
+        }
+        nextSequence = next;
+        return next;
+    }
+
+    //the entry of a claimed (producer) or consumed (consumer) sequence
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    //producer thread only: makes the entry of the claimed sequence visible to the consumers
+    public void publish(long sequence) {
+        //a volatile write: it must not be reordered with the read of numOfParked below (a parking consumer writes
+        //numOfParked and then reads the cursor, so at least one of the two sides sees the other)
+        cursor.set(sequence);
+        if (numOfParked.get() > 0) {
+            unparkOne();
+        }
+    }
+
+
+    //consumer thread with the given index (0 to numOfConsumers - 1) only. waits for published entries, hands up to
+    //maxBatch of them to the handler, and returns how many it handled. returns -1 once the ring is closed and empty
+    public int consume(int consumerIndex, int maxBatch, Consumer<? super E> handler) {
+        while (true) {
+            long claimed = workSequence.get();
+            long available = cursor.get();
+            if (claimed < available) {
+                //advertise the batch before claiming it: the producer reads the work sequence before the held ones
+                heldSequences.set(consumerIndex, claimed);
+                long last = Math.min(available, claimed + maxBatch);
+                if (workSequence.compareAndSet(claimed, last)) {
+                    try {
+                        for (long sequence = claimed + 1; sequence <= last; ++sequence) {
+                            handler.accept(get(sequence));
+                            //the entry can be reused. a release store is enough: the producer only has to see it
+                            //after the handler is done with the entry
+                            heldSequences.lazySet(consumerIndex, sequence);
+                        }
+                    } finally {
+                        heldSequences.set(consumerIndex, NOT_HOLDING);
+                    }
+                    return (int) (last - claimed);
+                }
+                //another consumer took it - a stale held sequence would stall the producer
+                heldSequences.set(consumerIndex, NOT_HOLDING);
+                continue;
+            }
+            if (isClosed) {
+                return -1;
+            }
+            awaitPublish(consumerIndex);
+        }
+    }
+
+
+    //stops the consumers once they have consumed everything that was published
+    public void close() {
+        isClosed = true;
+        for (Thread consumerThread : consumerThreads) {
+            if (consumerThread != null) {
+                LockSupport.unpark(consumerThread);
+            }
+        }
+    }
+
+
+    public int getSize() {
+        return entries.length;
+    }
+
+    //the number of published entries that no consumer claimed yet
+    public int getBacklog() {
+        return (int) Math.max(0, cursor.get() - workSequence.get());
+    }
+
+
+    private void awaitPublish(int consumerIndex) {
+        for (int i = 0; i < SPIN_ITERATIONS; ++i) {
+            if (cursor.get() > workSequence.get() || isClosed) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+
+        consumerThreads[consumerIndex] = Thread.currentThread();
+        isParked.set(consumerIndex, 1);
+        numOfParked.incrementAndGet();
+        //check again after registering, so a publish in between is not missed
+        if (cursor.get() <= workSequence.get() && !isClosed) {
+            LockSupport.park(this);
+        }
+        isParked.set(consumerIndex, 0);
+        numOfParked.decrementAndGet();
+    }
+
+    private void unparkOne() {
+        for (int i = 0; i < consumerThreads.length; ++i) {
+            if (isParked.compareAndSet(i, 1, 0)) {
+                LockSupport.unpark(consumerThreads[i]);
+                return;
+            }
+        }
+    }
+
+
+    //the lowest sequence that some consumer may still be using. the work sequence must be read first: a consumer
+    //advertises its held sequence before it advances the work sequence
+    private long gatingSequence() {
+        long gatingSequence = workSequence.get();
+        for (int i = 0; i < heldSequences.length(); ++i) {
+            gatingSequence = Math.min(gatingSequence, heldSequences.get(i));
+        }
+        return gatingSequence;
+    }
+}
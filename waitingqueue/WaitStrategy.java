@@ -0,0 +1,109 @@
+package waitingqueue;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+//how a consumer of WaitablePQueue waits for an element.
+//blocking parks right away: no CPU is burnt while idle, but an element that arrives pays for the OS wake-up.
+//spinning keeps checking for a while first, so an element that arrives soon is picked up within a few hundred
+//nanoseconds - at the price of a busy core. busy spin never parks, and is only sane with a core per consumer
+public abstract class WaitStrategy {
+    public static final int DEFAULT_SPIN_ITERATIONS = 10_000;
+    public static final int DEFAULT_YIELD_ITERATIONS = 100;
+    private static final WaitStrategy BLOCKING = new Blocking();
+    private static final WaitStrategy BUSY_SPIN = new BusySpin();
+
+    WaitStrategy() {
+    }
+
+    public static WaitStrategy blocking() {
+        return BLOCKING;
+    }
+
+    public static WaitStrategy spinYieldPark() {
+        return spinYieldPark(DEFAULT_SPIN_ITERATIONS, DEFAULT_YIELD_ITERATIONS);
+    }
+
+    //spins spinIterations times, then yields the CPU yieldIterations times, then parks
+    public static WaitStrategy spinYieldPark(int spinIterations, int yieldIterations) {
+        if (spinIterations < 0 || yieldIterations < 0) {
+            throw new IllegalArgumentException("Number of iterations cannot be negative");
+        }
+        return new SpinYieldPark(spinIterations, yieldIterations);
+    }
+
+    public static WaitStrategy busySpin() {
+        return BUSY_SPIN;
+    }
+
+
+    //takes one permit. timeoutNanos of Long.MAX_VALUE waits forever. returns false on timeout
+    abstract boolean acquire(Semaphore semaphore, long timeoutNanos) throws InterruptedException;
+
+
+    private static class Blocking extends WaitStrategy {
+        @Override
+        boolean acquire(Semaphore semaphore, long timeoutNanos) throws InterruptedException {
+            if (timeoutNanos == Long.MAX_VALUE) {
+                semaphore.acquire();
+                return true;
+            }
+            return semaphore.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+
+    private static class SpinYieldPark extends WaitStrategy {
+        private final int spinIterations;
+        private final int yieldIterations;
+
+        private SpinYieldPark(int spinIterations, int yieldIterations) {
+            this.spinIterations = spinIterations;
+            this.yieldIterations = yieldIterations;
+        }
+
+        @Override
+        boolean acquire(Semaphore semaphore, long timeoutNanos) throws InterruptedException {
+            long startTime = System.nanoTime();
+            //tryAcquire on an empty semaphore is a plain volatile read, so spinning on it doesn't hammer the cache line
+            for (int i = 0; i < spinIterations; ++i) {
+                if (semaphore.tryAcquire()) {
+                    return true;
+                }
+                Thread.onSpinWait();
+            }
+            for (int i = 0; i < yieldIterations; ++i) {
+                if (semaphore.tryAcquire()) {
+                    return true;
+                }
+                Thread.yield();
+            }
+
+            if (timeoutNanos == Long.MAX_VALUE) {
+                semaphore.acquire();
+                return true;
+            }
+            //the spin phase is short, but it may overrun a very short timeout
+            long remainingTimeToWait = timeoutNanos - (System.nanoTime() - startTime);
+            return semaphore.tryAcquire(Math.max(0, remainingTimeToWait), TimeUnit.NANOSECONDS);
+        }
+    }
+
+
+    private static class BusySpin extends WaitStrategy {
+        @Override
+        boolean acquire(Semaphore semaphore, long timeoutNanos) throws InterruptedException {
+            long startTime = System.nanoTime();
+            while (!semaphore.tryAcquire()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (timeoutNanos != Long.MAX_VALUE && System.nanoTime() - startTime >= timeoutNanos) {
+                    return false;
+                }
+                Thread.onSpinWait();
+            }
+            return true;
+        }
+    }
+}
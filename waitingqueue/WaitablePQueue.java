@@ -1,62 +1,193 @@
 package waitingqueue;
 
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import jfrevents.QueueDequeueEvent;
+import jfrevents.QueueEnqueueEvent;
+
+import java.util.Collection;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
+//blocking priority queue for a small, fixed number of priority levels.
+//every level has its own lock-free FIFO lane, so enqueue and dequeue are O(1) (dequeue scans the few lanes from the
+//highest level down). the semaphore counts the available elements and is the single place where consumers wait.
+//optionally the queue is bounded: producers then reserve space with a CAS, and only wait on a lock when it's full.
+//optionally elements age: the head of a lane is promoted one level for every aging interval it has been waiting.
+//since each lane is FIFO its head is also its oldest element, so aging only compares the few lane heads on dequeue
 public class WaitablePQueue<E> {
-    private final Queue<E> queue;
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final Queue<E>[] lanes;
+    //striped per level counters, only read for reporting (ConcurrentLinkedQueue.size() walks the whole lane)
+    private final LongAdder[] laneSizes;
+    private final ToIntFunction<? super E> levelOf;
     private final Semaphore semaphore = new Semaphore(0);
-    private final Lock lock = new ReentrantLock();
+    private final int capacity;
+    private final AtomicInteger count = new AtomicInteger(0);   //only maintained when bounded
+    private final AtomicInteger waitingProducers = new AtomicInteger(0);
+    private final ReentrantLock notFullLock = new ReentrantLock();
+    private final Condition notFull = notFullLock.newCondition();
+    //aging is disabled while agingIntervalNanos is 0
+    private volatile ToLongFunction<? super E> enqueueTimeOf = null;
+    private volatile long agingIntervalNanos = 0;
+    private volatile int maxAgedLevel = 0;
+    private volatile WaitStrategy waitStrategy = WaitStrategy.blocking();
 
-    //constructor with Comparator
-    public WaitablePQueue(Comparator<E> comparator) {
-        queue = new PriorityQueue<>(comparator);
+    //levelOf maps an element to its priority level: 0 is the lowest, numOfLevels - 1 is the highest
+    public WaitablePQueue(int numOfLevels, ToIntFunction<? super E> levelOf) {
+        this(numOfLevels, levelOf, UNBOUNDED);
     }
 
-    //Constructor without Comparator, E should be Comparable
-    public WaitablePQueue() {
-        this(null);
+    @SuppressWarnings("unchecked")
+    public WaitablePQueue(int numOfLevels, ToIntFunction<? super E> levelOf, int capacity) {
+        if (numOfLevels < 1) {
+            throw new IllegalArgumentException("Number of priority levels must be positive");
+        }
+        if (levelOf == null) {
+            throw new IllegalArgumentException("Invalid priority level function");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        this.levelOf = levelOf;
+        this.capacity = capacity;
+        lanes = (Queue<E>[]) new Queue<?>[numOfLevels];
+        laneSizes = new LongAdder[numOfLevels];
+        for (int i = 0; i < numOfLevels; ++i) {
+            lanes[i] = new ConcurrentLinkedQueue<>();
+            laneSizes[i] = new LongAdder();
+        }
     }
 
+    //blocks while the queue is full
     public void enqueue(E e) {
-        lock.lock();
-        try {
-            queue.add(e);
-            semaphore.release();
-        } finally {
-            lock.unlock();
+        if (isBounded() && !tryReserveSpace()) {
+            awaitSpace(Long.MAX_VALUE);
         }
+        insert(e);
+    }
+
+    //inserts even if the queue is full. meant for a few control elements that must never block or fail
+    public void forceEnqueue(E e) {
+        if (isBounded()) {
+            count.incrementAndGet();
+        }
+        insert(e);
+    }
+
+    //inserts all the elements with a single release of the semaphore (and a single reservation when bounded).
+    //blocks while there is not enough space for all of them
+    public void enqueueAll(Collection<? extends E> elements) {
+        int numOfElements = elements.size();
+        if (numOfElements == 0) {
+            return;
+        }
+        //check all the levels first, so a bad element doesn't leave half of the batch in the queue
+        for (E e : elements) {
+            laneOf(e);
+        }
+        if (isBounded()) {
+            if (numOfElements > capacity) {
+                throw new IllegalArgumentException("Batch is larger than the queue capacity");
+            }
+            if (!tryReserveSpace(numOfElements)) {
+                awaitSpace(numOfElements, Long.MAX_VALUE);
+            }
+        }
+        for (E e : elements) {
+            int level = laneOf(e);
+            lanes[level].add(e);
+            laneSizes[level].increment();
+        }
+        semaphore.release(numOfElements);
+    }
+
+    //inserts as many of the elements as there is space for, from the first one on, with a single reservation and a
+    //single release of the semaphore. never blocks. returns the number of elements inserted
+    public int offerAll(List<? extends E> elements) {
+        int numOfElements = elements.size();
+        if (numOfElements == 0) {
+            return 0;
+        }
+        for (E e : elements) {
+            laneOf(e);
+        }
+        if (isBounded()) {
+            numOfElements = tryReserveSpaceUpTo(numOfElements);
+            if (numOfElements == 0) {
+                return 0;
+            }
+        }
+        for (int i = 0; i < numOfElements; ++i) {
+            E e = elements.get(i);
+            int level = laneOf(e);
+            lanes[level].add(e);
+            laneSizes[level].increment();
+        }
+        semaphore.release(numOfElements);
+        return numOfElements;
+    }
+
+    //returns false if the queue is full
+    public boolean offer(E e) {
+        if (isBounded() && !tryReserveSpace()) {
+            return false;
+        }
+        insert(e);
+        return true;
+    }
+
+    //waits up to the given timeout for space in the queue. returns false if the queue stayed full
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        if (isBounded() && !tryReserveSpace() && !awaitSpace(unit.toNanos(timeout))) {
+            return false;
+        }
+        insert(e);
+        return true;
     }
 
     public E dequeue() {
+        //the event's duration includes the time spent waiting for an element
+        QueueDequeueEvent dequeueEvent = new QueueDequeueEvent();
+        dequeueEvent.begin();
         try {
-            semaphore.acquire();
+            waitStrategy.acquire(semaphore, Long.MAX_VALUE);
         } catch (InterruptedException ex) {
             throw new RuntimeException(ex);
         }
 
-        lock.lock();
-        try {
-            return queue.remove();
-        } finally {
-            lock.unlock();
+        E element = pollHighestLevel();
+        if (dequeueEvent.shouldCommit()) {
+            dequeueEvent.level = levelOf.applyAsInt(element);
+            dequeueEvent.queueSize = size();
+            dequeueEvent.commit();
         }
+        return element;
     }
 
 
-    public E dequeue(long timeout, TimeUnit unit) {
-        //calculate timeout deadline and remaining time to wait
-        long remainingTimeToWait = unit.toNanos(timeout);
-        long deadline = System.nanoTime() + remainingTimeToWait;
+    //non-blocking dequeue: returns null if the queue is empty
+    public E poll() {
+        if (!semaphore.tryAcquire()) {
+            return null;
+        }
+        return pollHighestLevel();
+    }
+
 
+    public E dequeue(long timeout, TimeUnit unit) {
         //try to acquire semaphore before timeout
         try {
-            if (!semaphore.tryAcquire(remainingTimeToWait, TimeUnit.NANOSECONDS)) {
+            if (!waitStrategy.acquire(semaphore, unit.toNanos(timeout))) {
                 return null;
             }
         } catch (InterruptedException e) {
@@ -64,69 +195,307 @@ public class WaitablePQueue<E> {
             return null;
         }
 
-        //update remaining time to wait after waiting for semaphore
-        remainingTimeToWait = deadline - System.nanoTime();
+        return pollHighestLevel();
+    }
+
 
-        boolean acquiredLock = false;
-        try {
-            if (!lock.tryLock(remainingTimeToWait, TimeUnit.NANOSECONDS)) {
-                return null;    //if timed out while waiting for lock - return null
+    //non-blocking: moves up to maxElements elements, in dequeue order, into the given collection with a single
+    //acquisition of the semaphore. returns the number of elements moved
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        int numOfElements;
+        do {
+            numOfElements = Math.min(maxElements, semaphore.availablePermits());
+            if (numOfElements <= 0) {
+                return 0;
             }
-            acquiredLock = true;
-            return queue.remove();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        } while (!semaphore.tryAcquire(numOfElements));
+
+        for (int i = 0; i < numOfElements; ++i) {
+            collection.add(pollSelectedLane());
+        }
+        releaseSpace(numOfElements);
+        return numOfElements;
+    }
+
+
+    //removes the oldest element of the lowest non-empty level, if that level is not above maxLevel.
+    //returns null if there is no such element
+    public E pollLowest(int maxLevel) {
+        if (!semaphore.tryAcquire()) {
             return null;
-        } finally {
-            if (acquiredLock) {
-                lock.unlock();
-            } else {
-                //if timed out while waiting for lock - release semaphore
-                semaphore.release();
+        }
+        for (int level = 0; level <= maxLevel && level < lanes.length; ++level) {
+            E element = lanes[level].poll();
+            if (element != null) {
+                laneSizes[level].decrement();
+                releaseSpace(1);
+                return element;
             }
         }
+        semaphore.release();
+        return null;
     }
 
 
+    //O(n) in the size of the element's lane. prefer lazy cancellation (skipping cancelled elements on dequeue)
     public boolean remove(Object o) {
-        lock.lock();
-        try {
-            boolean isRemoved = queue.remove(o);
-            if (isRemoved) {
-                semaphore.release();
+        //take the element's permit first, so no consumer waits for an element that was removed
+        if (!semaphore.tryAcquire()) {
+            return false;
+        }
+        for (int level = 0; level < lanes.length; ++level) {
+            if (lanes[level].remove(o)) {
+                laneSizes[level].decrement();
+                releaseSpace(1);
+                return true;
             }
-            return isRemoved;
-        } finally {
-            lock.unlock();
         }
+        semaphore.release();
+        return false;
     }
 
     public E peek() {
-        lock.lock();
-        try {
-            return queue.peek();
-        } finally {
-            lock.unlock();
-        }
+        int level = selectLane();
+        return (level == -1) ? null : lanes[level].peek();
     }
 
 
     public int size() {
-        lock.lock();
-        try {
-            return queue.size();
-        } finally {
-            lock.unlock();
+        return semaphore.availablePermits();
+    }
+
+
+    //approximate when the queue is being modified concurrently
+    public int sizeOfLevel(int level) {
+        if (level < 0 || level >= lanes.length) {
+            throw new IllegalArgumentException("Priority level out of range: " + level);
         }
+        return (int) Math.max(0, laneSizes[level].sum());
     }
 
 
     public boolean isEmpty() {
-        lock.lock();
+        return size() == 0;
+    }
+
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    //enqueueTimeOf returns the System.nanoTime() at which an element was enqueued. waiting elements are promoted by
+    //one level every agingInterval, but never above maxAgedLevel (levels above it are never overtaken by aged elements)
+    public void setAging(ToLongFunction<? super E> enqueueTimeOf, int maxAgedLevel, long agingInterval, TimeUnit unit) {
+        if (enqueueTimeOf == null) {
+            throw new IllegalArgumentException("Invalid enqueue time function");
+        }
+        if (maxAgedLevel < 0 || maxAgedLevel >= lanes.length) {
+            throw new IllegalArgumentException("Priority level out of range: " + maxAgedLevel);
+        }
+        if (agingInterval <= 0) {
+            throw new IllegalArgumentException("Aging interval must be positive");
+        }
+        this.enqueueTimeOf = enqueueTimeOf;
+        this.maxAgedLevel = maxAgedLevel;
+        this.agingIntervalNanos = unit.toNanos(agingInterval);
+    }
+
+    public void disableAging() {
+        agingIntervalNanos = 0;
+    }
+
+
+    //how dequeue waits for an element (blocking by default). consumers that are already waiting keep their strategy
+    //until they get an element
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        if (waitStrategy == null) {
+            throw new IllegalArgumentException("Invalid wait strategy");
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+
+    private void insert(E e) {
+        QueueEnqueueEvent enqueueEvent = new QueueEnqueueEvent();
+        enqueueEvent.begin();
+        int level = laneOf(e);
+        lanes[level].add(e);
+        laneSizes[level].increment();
+        semaphore.release();
+        if (enqueueEvent.shouldCommit()) {
+            enqueueEvent.level = level;
+            enqueueEvent.queueSize = size();
+            enqueueEvent.commit();
+        }
+    }
+
+
+    //must only be called after acquiring a permit, which guarantees that an element is available
+    private E pollHighestLevel() {
+        E element = pollSelectedLane();
+        releaseSpace(1);
+        return element;
+    }
+
+
+    //must only be called after acquiring a permit. doesn't free the element's space in a bounded queue
+    private E pollSelectedLane() {
+        while (true) {
+            int selectedLevel = selectLane();
+            if (selectedLevel != -1) {
+                E element = lanes[selectedLevel].poll();
+                if (element != null) {
+                    laneSizes[selectedLevel].decrement();
+                    return element;
+                }
+                //another consumer emptied the lane in the meantime
+                continue;
+            }
+            //our element was inserted into a lane we already scanned while another consumer took the one we saw - rescan
+            Thread.onSpinWait();
+        }
+    }
+
+
+    //the lane whose head has the highest effective level, or -1 if all lanes look empty.
+    //ties below the age cap go to the higher real level. at the cap they go to the older head: otherwise a backlog of
+    //a higher level, whose heads sit at the cap too, would still starve an aged lower level
+    private int selectLane() {
+        long interval = agingIntervalNanos;
+        int level = lanes.length - 1;
+        if (interval == 0) {
+            for (; level >= 0; --level) {
+                if (!lanes[level].isEmpty()) {
+                    return level;
+                }
+            }
+            return -1;
+        }
+
+        int ageCap = maxAgedLevel;
+        for (; level > ageCap; --level) {
+            //levels above the cap are never overtaken
+            if (!lanes[level].isEmpty()) {
+                return level;
+            }
+        }
+        ToLongFunction<? super E> enqueueTime = enqueueTimeOf;
+        long now = System.nanoTime();
+        int selectedLevel = -1;
+        long selectedEffectiveLevel = -1;
+        long selectedEnqueueTime = 0;
+        for (; level >= 0; --level) {
+            E head = lanes[level].peek();
+            if (head == null) {
+                continue;
+            }
+            long headEnqueueTime = enqueueTime.applyAsLong(head);
+            long effectiveLevel = Math.min(ageCap, level + Math.max(0, now - headEnqueueTime) / interval);
+            boolean isOlderAtCap = effectiveLevel == ageCap && effectiveLevel == selectedEffectiveLevel
+                    && headEnqueueTime - selectedEnqueueTime < 0;
+            if (effectiveLevel > selectedEffectiveLevel || isOlderAtCap) {
+                selectedLevel = level;
+                selectedEffectiveLevel = effectiveLevel;
+                selectedEnqueueTime = headEnqueueTime;
+            }
+        }
+        return selectedLevel;
+    }
+
+
+    private boolean isBounded() {
+        return capacity != UNBOUNDED;
+    }
+
+
+    private boolean tryReserveSpace() {
+        return tryReserveSpace(1);
+    }
+
+    private boolean tryReserveSpace(int numOfElements) {
+        while (true) {
+            int currentCount = count.get();
+            if (currentCount > capacity - numOfElements) {
+                return false;
+            }
+            if (count.compareAndSet(currentCount, currentCount + numOfElements)) {
+                return true;
+            }
+        }
+    }
+
+
+    //reserves space for as many of the elements as fit. returns the number reserved
+    private int tryReserveSpaceUpTo(int maxElements) {
+        while (true) {
+            int currentCount = count.get();
+            int numOfElements = Math.min(maxElements, capacity - currentCount);
+            if (numOfElements <= 0) {
+                return 0;
+            }
+            if (count.compareAndSet(currentCount, currentCount + numOfElements)) {
+                return numOfElements;
+            }
+        }
+    }
+
+
+    //slow path of a producer when the queue is full. returns true once space was reserved, false on timeout
+    private boolean awaitSpace(long timeoutNanos) {
+        return awaitSpace(1, timeoutNanos);
+    }
+
+    private boolean awaitSpace(int numOfElements, long timeoutNanos) {
+        notFullLock.lock();
+        //register as waiting before checking again, so a consumer that frees space in between will signal us
+        waitingProducers.incrementAndGet();
         try {
-            return queue.isEmpty();
+            long remainingTimeToWait = timeoutNanos;
+            while (!tryReserveSpace(numOfElements)) {
+                if (timeoutNanos == Long.MAX_VALUE) {
+                    notFull.awaitUninterruptibly();
+                } else {
+                    if (remainingTimeToWait <= 0) {
+                        return false;
+                    }
+                    remainingTimeToWait = notFull.awaitNanos(remainingTimeToWait);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         } finally {
-            lock.unlock();
+            waitingProducers.decrementAndGet();
+            notFullLock.unlock();
+        }
+    }
+
+
+    private void releaseSpace(int numOfElements) {
+        if (!isBounded()) {
+            return;
+        }
+        count.addAndGet(-numOfElements);
+        //only touch the lock when a producer is actually waiting for space
+        if (waitingProducers.get() > 0) {
+            notFullLock.lock();
+            try {
+                //wake all of them: a batch producer that needs more slots than were freed must not swallow the signal
+                notFull.signalAll();
+            } finally {
+                notFullLock.unlock();
+            }
+        }
+    }
+
+
+    private int laneOf(E e) {
+        int level = levelOf.applyAsInt(e);
+        if (level < 0 || level >= lanes.length) {
+            throw new IllegalArgumentException("Priority level out of range: " + level);
         }
+        return level;
     }
 }
@@ -0,0 +1,84 @@
+package waitingqueue;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+//non-blocking, per-worker deque with a lane for each priority level.
+//the owner pushes and pops at the head of a lane (LIFO, cache friendly), other threads steal from the tail (FIFO),
+//and both always take from the highest non-empty level
+public class WorkStealingDeque<E> {
+    private final Deque<E>[] lanes;
+    private final ToIntFunction<? super E> levelOf;
+
+    //levelOf maps an element to its priority level: 0 is the lowest, numOfLevels - 1 is the highest
+    @SuppressWarnings("unchecked")
+    public WorkStealingDeque(int numOfLevels, ToIntFunction<? super E> levelOf) {
+        if (numOfLevels < 1) {
+            throw new IllegalArgumentException("Number of priority levels must be positive");
+        }
+        if (levelOf == null) {
+            throw new IllegalArgumentException("Invalid priority level function");
+        }
+
+        this.levelOf = levelOf;
+        lanes = (Deque<E>[]) new Deque<?>[numOfLevels];
+        for (int i = 0; i < numOfLevels; ++i) {
+            lanes[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    //owner only
+    public void push(E e) {
+        int level = levelOf.applyAsInt(e);
+        if (level < 0 || level >= lanes.length) {
+            throw new IllegalArgumentException("Priority level out of range: " + level);
+        }
+        lanes[level].addFirst(e);
+    }
+
+    //owner only
+    public E pop() {
+        for (int level = lanes.length - 1; level >= 0; --level) {
+            E element = lanes[level].pollFirst();
+            if (element != null) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    //any thread
+    public E steal() {
+        for (int level = lanes.length - 1; level >= 0; --level) {
+            E element = lanes[level].pollLast();
+            if (element != null) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    //the highest level that currently has elements, or -1 if the deque is empty
+    public int highestLevel() {
+        for (int level = lanes.length - 1; level >= 0; --level) {
+            if (!lanes[level].isEmpty()) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isEmpty() {
+        return highestLevel() == -1;
+    }
+
+    //remove all elements, from the highest level down, and hand them to the given action
+    public void drain(Consumer<? super E> action) {
+        E element;
+        while ((element = steal()) != null) {
+            action.accept(element);
+        }
+    }
+}